@@ -56,6 +56,7 @@ public class AdminClient  {
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
         options.addOption("password",true,"password for server");
+        options.addOption("rtt",false,"print the round trip time to the server");
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -87,6 +88,10 @@ public class AdminClient  {
         ClientManager clientManager = new ClientManager(host,port);
         clientManager.on(ClientManager.sessionStarted, (eventArgs)->{
         	Endpoint endpoint = (Endpoint) eventArgs[0];
+        	if(cmd2.hasOption("rtt")) {
+        		System.out.println("round trip time: "+endpoint.getSmoothedRtt()+
+        				" ms, variation: "+endpoint.getRttVariance()+" ms");
+        	}
         	if(cmd2.hasOption("shutdown")) {
         		String password="";
         		if(cmd2.hasOption("password")) {
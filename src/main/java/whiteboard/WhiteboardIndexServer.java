@@ -80,6 +80,11 @@ public class WhiteboardIndexServer {
 	 */
 	private static int port = Utils.indexServerPort;
 
+	/**
+	 * Number of selector threads, 0 for a thread per connection.
+	 */
+	private static int selectors = 0;
+
 	/**
 	 * Maps containing various of relations
 	 */
@@ -108,6 +113,7 @@ public class WhiteboardIndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("selectors",true,"number of selector threads, an integer, 0 for a thread per connection");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -128,6 +134,15 @@ public class WhiteboardIndexServer {
 			}
         }
 
+		if(cmd.hasOption("selectors")){
+			try{
+				selectors = Integer.parseInt(cmd.getOptionValue("selectors"));
+			} catch (NumberFormatException e){
+				System.out.println("-selectors requires a number, parsed: "+cmd.getOptionValue("selectors"));
+				help(options);
+			}
+		}
+
         // create a server manager and setup event handlers
         ServerManager serverManager;
         
@@ -136,6 +151,7 @@ public class WhiteboardIndexServer {
         } else {
         	serverManager = new ServerManager(port);
         }
+        serverManager.setSelectorThreads(selectors);
 
 		serverManager.on(ioThread, (args1 -> {
 			String peerPort = (String) args1[0];
@@ -17,6 +17,48 @@ public class Whiteboard {
 
 	private static final Logger log = Logger.getLogger(Whiteboard.class.getName());
 
+	/**
+	 * Most recent changes that a whiteboard keeps, see {@link #changesSince(long)}.
+	 */
+	public static final int changeLogSize = 256;
+
+	/**
+	 * A change made to a whiteboard, as kept in its log of changes.
+	 */
+	public static class Change {
+		public enum Type { PATH, UNDO, CLEAR }
+
+		private final Type type;
+
+		/**
+		 * The version of the board that the change applies to.
+		 */
+		private final long version;
+
+		/**
+		 * The path added, null unless the change is a path.
+		 */
+		private final WhiteboardPath path;
+
+		Change(Type type, long version, WhiteboardPath path) {
+			this.type = type;
+			this.version = version;
+			this.path = path;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public WhiteboardPath getPath() {
+			return path;
+		}
+	}
+
 	/**
 	 * Paths for this whiteboard.
 	 */
@@ -32,6 +74,17 @@ public class Whiteboard {
 	 */
 	private long version;
 	
+	/**
+	 * The most recent changes, the change that applies to a version is at
+	 * that version modulo {@link #changeLogSize}.
+	 */
+	private final Change[] changes = new Change[changeLogSize];
+	
+	/**
+	 * The version that the oldest change in the log applies to.
+	 */
+	private long oldestChange = 0;
+	
 	/**
 	 * Whether this whiteboard is being shared or not. Only relevant
 	 * for boards that are created locally.
@@ -69,6 +122,7 @@ public class Whiteboard {
 		paths = new ArrayList<>();
 		this.name = name;
 		version = -1;
+		oldestChange = version;
 		if(parts.length < 1) {
 			log.severe("whiteboard data is malformed: "+data);
 			return;
@@ -79,6 +133,8 @@ public class Whiteboard {
 			log.severe("whiteboard data is malformed: "+data);
 			return;
 		}
+		// the changes that led up to this version are not known
+		oldestChange = version;
 		if(parts.length > 1) {
 			for (int i = 1; i < parts.length; i++) {
 				String path = parts[i];
@@ -137,6 +193,7 @@ public class Whiteboard {
 			result = false;
 		} else {
 			paths.add(newPath);
+			logChange(new Change(Change.Type.PATH, version, newPath));
 			this.version++;
 		}
 		return result;
@@ -153,6 +210,7 @@ public class Whiteboard {
 			result = false;
 		} else {
 			paths.clear();
+			logChange(new Change(Change.Type.CLEAR, version, null));
 			this.version++;
 		}
 		return result;
@@ -169,11 +227,42 @@ public class Whiteboard {
 			if (paths.size() > 0) {
 				paths.remove(paths.size() - 1);
 			}
+			logChange(new Change(Change.Type.UNDO, version, null));
 			this.version++;
 		}
 		return result;
 	}
 	
+	/**
+	 * Keep a change in the log, in place of the oldest change if the log
+	 * is full. Called before the version is updated.
+	 * @param change that applies to the current version
+	 */
+	private void logChange(Change change) {
+		changes[Math.floorMod(version, changeLogSize)] = change;
+		if (version + 1 - oldestChange > changeLogSize) {
+			oldestChange = version + 1 - changeLogSize;
+		}
+	}
+	
+	/**
+	 * Get the changes made to the board since a version, so that a copy of
+	 * the board at that version can be brought up to date without all of it.
+	 * @param since version of the board
+	 * @return the changes in the order they were made, or null if the
+	 * log does not go back that far or the board has not reached that version
+	 */
+	public synchronized List<Change> changesSince(long since) {
+		if (since < oldestChange || since > version) {
+			return null;
+		}
+		List<Change> missed = new ArrayList<>();
+		for (long v = since; v < version; v++) {
+			missed.add(changes[Math.floorMod(v, changeLogSize)]);
+		}
+		return missed;
+	}
+	
 	/**
 	 * 
 	 * @return peer:port:boardID%version
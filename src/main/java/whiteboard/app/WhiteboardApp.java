@@ -5,7 +5,11 @@ import whiteboard.managers.ClientManager;
 import whiteboard.managers.IOThread;
 import whiteboard.managers.PeerManager;
 import whiteboard.managers.ServerManager;
+import whiteboard.managers.endpoint.BackpressurePolicy;
 import whiteboard.managers.endpoint.Endpoint;
+import whiteboard.protocols.Protocol;
+import whiteboard.protocols.event.EventProtocol;
+import whiteboard.utils.Utils;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -17,8 +21,17 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.net.UnknownHostException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiPredicate;
 import java.util.logging.Logger;
 
 import javax.swing.BoxLayout;
@@ -70,7 +83,20 @@ public class WhiteboardApp {
 	public static final String getBoardData = "GET_BOARD_DATA";
 
 	/**
-	 * Emitted to another peer to give the entire board data for a given board.
+	 * Emitted to another peer to get the changes made to a given board since a
+	 * version, which are sent as the events that accepted them, or as the
+	 * entire board data if the board no longer has all of them.
+	 * Argument must have format "host:port:boardID
+	 * %version".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String getBoardChanges = "GET_BOARD_CHANGES";
+
+	/**
+	 * Emitted to another peer to give the entire board data for a given board,
+	 * when it starts listening to the board or has missed changes to it.
 	 * Argument must have format "host:port:boardID
 	 * %version%PATHS".
 	 * <ul>
@@ -100,7 +126,8 @@ public class WhiteboardApp {
 	public static final String boardPathUpdate = "BOARD_PATH_UPDATE";
 
 	/**
-	 * Emitted to another peer to indicate a new path has been accepted. Argument
+	 * Emitted to the peers listening to a board to indicate a new path has been
+	 * accepted, which they add to their copy of the board. Argument
 	 * must have format "host:port:boardID
 	 * %version%PATH". The numeric value of
 	 * version must be equal to the version of the board without the PATH added,
@@ -124,7 +151,8 @@ public class WhiteboardApp {
 	public static final String boardUndoUpdate = "BOARD_UNDO_UPDATE";
 
 	/**
-	 * Emitted to another peer to indicate an undo has been accepted. Argument must
+	 * Emitted to the peers listening to a board to indicate an undo has been
+	 * accepted, which they apply to their copy of the board. Argument must
 	 * have format "host:port:boardID
 	 * %version%". The numeric value of version must
 	 * be equal to the version of the board without the undo applied, i.e. the
@@ -148,7 +176,8 @@ public class WhiteboardApp {
 	public static final String boardClearUpdate = "BOARD_CLEAR_UPDATE";
 
 	/**
-	 * Emitted to another peer to indicate an clear has been accepted. Argument must
+	 * Emitted to the peers listening to a board to indicate an clear has been
+	 * accepted, which they apply to their copy of the board. Argument must
 	 * have format "host:port:boardID
 	 * %version%". The numeric value of version must
 	 * be equal to the version of the board without the clear applied, i.e. the
@@ -177,6 +206,17 @@ public class WhiteboardApp {
 	 */
 	public static final String boardError = "BOARD_ERROR";
 
+	/**
+	 * Bytes queued for a subscriber at which it is no longer considered slow.
+	 */
+	private static final long subscriberLowWatermark = 256*1024;
+
+	/**
+	 * Bytes queued for a subscriber at which it is considered slow. It is
+	 * then sent snapshots of boards rather than their changes, and queued
+	 * changes and snapshots of a board are replaced by a newer snapshot.
+	 */
+	private static final long subscriberHighWatermark = 1024*1024;
 
 	/**
 	 * White board map from board name to board object 
@@ -202,6 +242,12 @@ public class WhiteboardApp {
 
 	Map<String, ArrayList<String>> remoteBoardMap; // endpoint id : <board name>
 
+	Map<String, Set<String>> peerBoards; // peer host:port : <board name>, subscribed over the shared connection
+
+	Map<String, Endpoint> peerEndpoints; // peer host:port : endpoint of the shared connection, once its session started
+
+	Set<String> resyncing; // board names whose board data has been asked for again, after changes were missed
+
 	Endpoint serverEndpoint = null;
 
 	/**
@@ -212,6 +258,9 @@ public class WhiteboardApp {
 		this.whiteboards = new ConcurrentHashMap<>();
 		this.subscriptionEndpointMap = new ConcurrentHashMap<>();
 		this.remoteBoardMap = new ConcurrentHashMap<>();
+		this.peerBoards = new HashMap<>();
+		this.peerEndpoints = new HashMap<>();
+		this.resyncing = ConcurrentHashMap.newKeySet();
 		this.peerPort = "127.0.0.1:" + peerPort;
 		startPeerServer(peerPort);
 		connectToIndexServer(whiteboardServerHost, whiteboardServerPort);
@@ -232,6 +281,17 @@ public class WhiteboardApp {
 		}).on(PeerManager.peerStarted, (args)-> {
 			Endpoint endpoint = (Endpoint) args[0];
 			log.info("Peer session started: " + endpoint.getOtherEndpointId());
+			// a slow subscriber only needs the latest snapshot of each board
+			endpoint.setBackpressure(subscriberLowWatermark, subscriberHighWatermark,
+					BackpressurePolicy.DROP_SUPERSEDED);
+			endpoint.supersedeEvent(boardData, (data) -> boardData + ":" + getBoardName(data));
+			// the changes to a board, and the snapshot that replaces them, see broadcastChange
+			endpoint.supersedeEvent(boardDataOverride, WhiteboardApp::getBoardName);
+			endpoint.dropEvent(boardPathAccepted, WhiteboardApp::getBoardName);
+			endpoint.dropEvent(boardUndoAccepted, WhiteboardApp::getBoardName);
+			endpoint.dropEvent(boardClearAccepted, WhiteboardApp::getBoardName);
+			// handle requests off the thread that reads from the subscriber
+			endpoint.setDispatcher(Utils.getInstance().getEventDispatcher());
 			endpoint.on(listenBoard, (args1) -> {
 				String board = (String) args1[0];
 				if (whiteboards.containsKey(board)) {
@@ -262,17 +322,24 @@ public class WhiteboardApp {
 				} else {
 					log.info("Board " + args1[0] + " does not exist");
 				}
+			}).on(getBoardChanges, (args1) -> {
+				String data = (String) args1[0];
+				Whiteboard board = whiteboards.get(getBoardName(data));
+				if (board == null) {
+					endpoint.emit(boardError, "BOARD_NOT_FOUND");
+				} else {
+					sendChangesSince(endpoint, board, getBoardVersion(data), boardData);
+				}
 			}).on(boardPathUpdate, (args1) -> {
 				String data = (String) args1[0];
 				Whiteboard board = whiteboards.get(getBoardName(data));
 				if (board == null) {
 					endpoint.emit(boardError, "BOARD_NOT_FOUND");
 				} else {
-					if (pathCreatedRemotely(new WhiteboardPath(getBoardPaths(data)), board, getBoardVersion(data))) {
-						endpoint.emit(boardPathAccepted, data);
-					} else {
+					// if accepted, the peer hears of it along with the other peers listening to the board
+					if (!pathCreatedRemotely(new WhiteboardPath(getBoardPaths(data)), board, getBoardVersion(data))) {
 						endpoint.emit(boardError, "PATH_REJECTED");
-						endpoint.emit(boardDataOverride, board.toString());
+						sendChangesSince(endpoint, board, getBoardVersion(data), boardDataOverride);
 					}
 				}
 			}).on(boardUndoUpdate, (args1) -> {
@@ -281,11 +348,9 @@ public class WhiteboardApp {
 				if (board == null) {
 					endpoint.emit(boardError, "BOARD_NOT_FOUND");
 				} else {
-					if (undoRemotely(board, getBoardVersion(data))) {
-						endpoint.emit(boardUndoAccepted, data);
-					} else {
+					if (!undoRemotely(board, getBoardVersion(data))) {
 						endpoint.emit(boardError, "UNDO_REJECTED");
-						endpoint.emit(boardDataOverride, board.toString());
+						sendChangesSince(endpoint, board, getBoardVersion(data), boardDataOverride);
 					}
 				}
 			}).on(boardClearUpdate, (args1) -> {
@@ -294,11 +359,9 @@ public class WhiteboardApp {
 				if (board == null) {
 					endpoint.emit(boardError, "BOARD_NOT_FOUND");
 				} else {
-					if (clearedRemotely(board, getBoardVersion(data))) {
-						endpoint.emit(boardClearAccepted, data);
-					} else {
+					if (!clearedRemotely(board, getBoardVersion(data))) {
 						endpoint.emit(boardError, "CLEAR_REJECTED");
-						endpoint.emit(boardDataOverride, board.toString());
+						sendChangesSince(endpoint, board, getBoardVersion(data), boardDataOverride);
 					}
 				}
 			});
@@ -309,7 +372,7 @@ public class WhiteboardApp {
 		})).on(PeerManager.peerError, (args -> {
 			Endpoint endpoint = (Endpoint) args[0];
 			log.severe("Connection to peer ended in error: " + endpoint.getOtherEndpointId());
-			endpoint.close();
+			endpoint.closeNow();
 		}));
 		peerManager.start();
 	}
@@ -352,66 +415,143 @@ public class WhiteboardApp {
 	    }).on(PeerManager.peerError, (args) -> {
             Endpoint endpoint = (Endpoint) args[0];
             log.severe("Connection to server ended in error: " + endpoint.getOtherEndpointId());
-            endpoint.close();
+            endpoint.closeNow();
         });
 		serverClientManager.start();
 	}
 
 	/**
-	 * Connect to a peer server and keep-alive for board updates
+	 * Subscribe to a board on a peer server. All of the boards on the same peer
+	 * share one connection, which is made for the first of them and shut down
+	 * once none of them are subscribed to.
 	 * @param host peer host
 	 * @param port peer port
-	 * @param firstBoard the first board to request
-	 */
-	public void connectToPeer(String host, int port, String firstBoard) {
-		ClientManager clientManager;
-		try {
-			clientManager = peerManager.connect(port, host);
-			clientManager.on(PeerManager.peerStarted, (args) -> {
-				Endpoint endpoint = (Endpoint) args[0];
-				log.info("Peer connected: " + endpoint.getOtherEndpointId());
-				endpoint.on(boardData, (args1 -> acceptBoard((String)args1[0], endpoint, false))
-				).on(boardDataOverride, (args1 -> acceptBoard((String)args1[0], endpoint, true))
-				).on(boardPathAccepted, (args1) -> {
-					String data = (String) args1[0];
-					log.info("Modification accepted by remote peer " + endpoint.getOtherEndpointId()
-							+ ": " + getBoardName(data) + " - " + getBoardPaths(data));
-				}).on(boardUndoAccepted, (args1) -> {
-					String data = (String) args1[0];
-					log.info("Modification accepted by remote peer " + endpoint.getOtherEndpointId()
-							+ ": " + getBoardName(data) + " - UNDO");
-				}).on(boardClearAccepted, (args1) -> {
-					String data = (String) args1[0];
-					log.info("Modification accepted by remote peer " + endpoint.getOtherEndpointId()
-							+ ": " + getBoardName(data) + " - CLEAR");
-				}).on(WhiteboardIndexServer.unsharingBoard, (args1 -> {
-					String boardName = (String) args1[0];
+	 * @param board the board to request
+	 */
+	public void connectToPeer(String host, int port, String board) {
+		String peer = host + ":" + port;
+		Endpoint endpoint;
+		synchronized (peerBoards) {
+			Set<String> boards = peerBoards.computeIfAbsent(peer, k -> new HashSet<>());
+			if (!boards.add(board)) {
+				return; // already subscribed
+			}
+			try {
+				peerManager.acquirePeer(host, port, (clientManager) -> setupPeer(peer, clientManager));
+			} catch (UnknownHostException | InterruptedException e) {
+				boards.remove(board);
+				return;
+			}
+			// if the session has not started yet, the board is subscribed to when it does
+			endpoint = peerEndpoints.get(peer);
+		}
+		// never emit while holding the lock, the endpoint thread may be waiting for it
+		if (endpoint != null) {
+			subscribeToPeer(endpoint, board);
+		}
+	}
+
+	/**
+	 * Set up the callbacks of a new connection to a peer server.
+	 * @param peer host:port of the peer
+	 * @param clientManager of the connection, not yet started
+	 */
+	private void setupPeer(String peer, ClientManager clientManager) {
+		clientManager.on(PeerManager.peerStarted, (args) -> {
+			Endpoint endpoint = (Endpoint) args[0];
+			log.info("Peer connected: " + endpoint.getOtherEndpointId());
+			// boards are parsed and redrawn off the thread that reads from the peer
+			endpoint.setDispatcher(Utils.getInstance().getEventDispatcher());
+			// removed when the connection ends, see endPeer
+			endpoint.on(boardData, (args1 -> acceptBoard((String)args1[0], endpoint, false)), this
+			).on(boardDataOverride, (args1 -> acceptBoard((String)args1[0], endpoint, true)), this
+			).on(boardPathAccepted, (args1) -> {
+				String data = (String) args1[0];
+				applyChange(data, endpoint, (board, version) ->
+						board.addPath(new WhiteboardPath(getBoardPaths(data)), version));
+			}, this).on(boardUndoAccepted, (args1) -> {
+				applyChange((String) args1[0], endpoint, Whiteboard::undo);
+			}, this).on(boardClearAccepted, (args1) -> {
+				applyChange((String) args1[0], endpoint, Whiteboard::clear);
+			}, this).on(WhiteboardIndexServer.unsharingBoard, (args1 -> {
+				String boardName = (String) args1[0];
+				deleteBoard(boardName);
+			}), this).on(boardError, (args1 -> {
+				String message = (String) args1[0];
+				log.info("Error from remote peer " + endpoint.getOtherEndpointId()
+						+ ": " + message);
+			}), this).on(boardDeleted, (args1 -> {
+				String boardName = (String) args1[0];
+				if (whiteboards.containsKey(boardName)) {
 					deleteBoard(boardName);
-				})).on(boardError, (args1 -> {
-					String message = (String) args1[0];
-					log.info("Error from remote peer " + endpoint.getOtherEndpointId()
-							+ ": " + message);
-				})).on(boardDeleted, (args1 -> {
-					String boardName = (String) args1[0];
-					if (whiteboards.containsKey(boardName)) {
-						deleteBoard(boardName);
-						log.info("Board removed by remote peer: " + boardName);
-					} // since this call could (very likely) be redundancy, we should tolerate this
-				}));
-				endpoint.emit(listenBoard, firstBoard);
-				endpoint.emit(getBoardData, firstBoard);
-			}).on(PeerManager.peerStopped, (args) -> {
-				Endpoint endpoint = (Endpoint) args[0];
-				removeByEndpoint(endpoint);
-				log.info("Peer disconnected: " + endpoint.getOtherEndpointId());
-			}).on(PeerManager.peerError, (args) -> {
-				Endpoint endpoint = (Endpoint) args[0];
-				removeByEndpoint(endpoint);
-				log.severe("Peer connection ended in error: " + endpoint.getOtherEndpointId());
-				endpoint.close();
-			});
-			clientManager.start();
-		} catch (UnknownHostException | InterruptedException ignored) {}
+					log.info("Board removed by remote peer: " + boardName);
+				} // since this call could (very likely) be redundancy, we should tolerate this
+			}), this);
+			ArrayList<String> boards = new ArrayList<>();
+			synchronized (peerBoards) {
+				peerEndpoints.put(peer, endpoint);
+				if (peerBoards.containsKey(peer)) {
+					boards.addAll(peerBoards.get(peer));
+				}
+			}
+			boards.forEach(board -> subscribeToPeer(endpoint, board));
+		}, this).on(PeerManager.peerStopped, (args) -> {
+			Endpoint endpoint = (Endpoint) args[0];
+			endPeer(peer, clientManager, endpoint);
+			log.info("Peer disconnected: " + endpoint.getOtherEndpointId());
+		}, this).on(PeerManager.peerError, (args) -> {
+			Endpoint endpoint = (Endpoint) args[0];
+			endPeer(peer, clientManager, endpoint);
+			log.severe("Peer connection ended in error: " + endpoint.getOtherEndpointId());
+			endpoint.closeNow();
+		}, this).on(PeerManager.peerUnreachable, (args) -> {
+			// the boards can be subscribed to again, over a new connection
+			releasePeer(peer);
+			clientManager.offAll(this);
+			log.severe("Could not connect to peer: " + peer);
+		}, this);
+	}
+
+	/**
+	 * Clean up after a connection to a peer server has ended, removing the
+	 * callbacks added for it so that they and the boards and endpoint they
+	 * refer to are not kept.
+	 * @param peer host:port of the peer
+	 * @param clientManager of the connection
+	 * @param endpoint of the connection
+	 */
+	private void endPeer(String peer, ClientManager clientManager, Endpoint endpoint) {
+		removeByEndpoint(endpoint);
+		releasePeer(peer);
+		endpoint.offAll(this);
+		clientManager.offAll(this);
+	}
+
+	/**
+	 * Subscribe to a board over the connection to its peer server.
+	 * @param endpoint of the connection
+	 * @param board board name
+	 */
+	private void subscribeToPeer(Endpoint endpoint, String board) {
+		endpoint.emit(listenBoard, board);
+		endpoint.emit(getBoardData, board);
+	}
+
+	/**
+	 * Forget about the boards still subscribed to on a peer server whose
+	 * connection has ended, releasing the connection for each of them.
+	 * @param peer host:port of the peer
+	 */
+	private void releasePeer(String peer) {
+		String[] parts = parsePeer(peer);
+		Set<String> boards;
+		synchronized (peerBoards) {
+			peerEndpoints.remove(peer);
+			boards = peerBoards.remove(peer);
+		}
+		if (boards != null) {
+			boards.forEach(board -> peerManager.releasePeer(parts[0], Integer.parseInt(parts[1])));
+		}
 	}
 
 	/*
@@ -423,6 +563,7 @@ public class WhiteboardApp {
 		String name = getBoardName(boardData);
 		String data = getBoardData(boardData);
 		long version = getBoardVersion(boardData);
+		resyncing.remove(name);
 		if (!whiteboards.containsKey(name) || whiteboards.get(name).getVersion() < version || override) {
 			Whiteboard whiteboard = new Whiteboard(name, true);
 			whiteboard.whiteboardFromString(name, data);
@@ -440,14 +581,121 @@ public class WhiteboardApp {
 		}
 	}
 
-    private void broadcastChanges(Whiteboard whiteboard) {
+	/**
+	 * Apply a change accepted by the peer that manages a board to the copy of
+	 * the board here. Changes that are already in the board are ignored, and
+	 * if changes have been missed the board data is asked for again.
+	 * @param data peer:port:boardID%version%..., where version is that of
+	 *             the board without the change
+	 * @param endpoint of the peer that manages the board
+	 * @param change applies the change to a board, given the version it applies to
+	 */
+	private void applyChange(String data, Endpoint endpoint, BiPredicate<Whiteboard, Long> change) {
+		String name = getBoardName(data);
+		long version = getBoardVersion(data);
+		Whiteboard board = whiteboards.get(name);
+		if (board == null || !board.isRemote()) {
+			return; // the board data on its way already has the change
+		}
+		if (change.test(board, version)) {
+			resyncing.remove(name);
+			if (board == selectedBoard) {
+				drawSelectedWhiteboard();
+			}
+			log.info("Modification accepted by remote peer " + endpoint.getOtherEndpointId()
+					+ ": " + name + " - version " + board.getVersion());
+		} else if (version > board.getVersion() && resyncing.add(name)) {
+			log.info("Changes missed on " + name + ", asking for them since version " + board.getVersion());
+			if (takesChanges(endpoint)) {
+				endpoint.emit(getBoardChanges, name + "%" + board.getVersion());
+			} else {
+				endpoint.emit(getBoardData, name);
+			}
+		}
+	}
+
+	/**
+	 * Bring the copy of a board that a peer has up to date, with the changes
+	 * made since its version if the board still has them and the peer takes
+	 * changes, or all of the board otherwise.
+	 * @param endpoint of the peer
+	 * @param board the board
+	 * @param version of the copy that the peer has
+	 * @param snapshot boardData or boardDataOverride, to send all of the board with
+	 */
+	private void sendChangesSince(Endpoint endpoint, Whiteboard board, long version, String snapshot) {
+		// a slow peer is sent all of the board, rather than changes that may be dropped
+		List<Whiteboard.Change> changes = isSlow(endpoint) || !takesChanges(endpoint) ? null
+				: board.changesSince(version);
+		if (changes == null) {
+			endpoint.emit(snapshot, board.toString());
+			log.info("Board " + board.getName() + " sent to: " + endpoint.getOtherEndpointId());
+			return;
+		}
+		for (Whiteboard.Change change : changes) {
+			String data = board.getName() + "%" + change.getVersion() + "%";
+			switch (change.getType()) {
+			case PATH:
+				endpoint.emit(boardPathAccepted, data + change.getPath().toString());
+				break;
+			case UNDO:
+				endpoint.emit(boardUndoAccepted, data);
+				break;
+			case CLEAR:
+				endpoint.emit(boardClearAccepted, data);
+				break;
+			}
+		}
+		log.info(changes.size() + " changes to " + board.getName() + " sent to: " + endpoint.getOtherEndpointId());
+	}
+
+	/**
+	 * Send a change that has been accepted to the peers listening to a board,
+	 * rather than the whole board. A slow peer is sent the whole board
+	 * instead, which replaces the changes to the board, and any snapshot of
+	 * it, that are still queued for the peer. A peer that does not take
+	 * changes is sent the whole board every time.
+	 * @param whiteboard the board
+	 * @param accepted one of boardPathAccepted, boardUndoAccepted and boardClearAccepted
+	 * @param data peer:port:boardID%version%..., where version is that of
+	 *             the board without the change
+	 */
+	private void broadcastChange(Whiteboard whiteboard, String accepted, String data) {
 		if (subscriptionEndpointMap.containsKey(whiteboard.getName())) {
 			for (Endpoint e: subscriptionEndpointMap.get(whiteboard.getName())) {
-				e.emit(boardData, whiteboard.toString());
-				log.info("Board " + whiteboard.getName() + " sent to: " + e.getOtherEndpointId());
+				if (!takesChanges(e)) {
+					e.emit(boardData, whiteboard.toString());
+					log.info("Board " + whiteboard.getName() + " sent to: " + e.getOtherEndpointId());
+				} else if (isSlow(e)) {
+					e.emit(boardDataOverride, whiteboard.toString());
+					log.info("Board " + whiteboard.getName() + " sent to slow peer: " + e.getOtherEndpointId());
+				} else {
+					e.emit(accepted, data);
+					log.info("Change to " + whiteboard.getName() + " sent to: " + e.getOtherEndpointId());
+				}
 			}
 		}
-    }
+	}
+
+	/**
+	 * @param endpoint of a peer
+	 * @return true if the peer has agreed to be sent the changes to boards,
+	 *         older peers only take all of a board
+	 */
+	private static boolean takesChanges(Endpoint endpoint) {
+		return endpoint.hasCapability(Endpoint.boardChangesCapability);
+	}
+
+	/**
+	 * @param endpoint of a peer
+	 * @return true if the peer is not keeping up, with reading what is
+	 *         written to it or with acknowledging events
+	 */
+	private static boolean isSlow(Endpoint endpoint) {
+		Protocol protocol = endpoint.getProtocol(EventProtocol.protocolName);
+		return endpoint.isSaturated()
+				|| (protocol instanceof EventProtocol && ((EventProtocol) protocol).isSaturated());
+	}
 
     private void setShareToServer(Whiteboard whiteboard, Boolean share) {
 		if (serverEndpoint != null) {
@@ -458,9 +706,14 @@ public class WhiteboardApp {
 	}
 
 	private void removeByEndpoint(Endpoint endpoint) {
-    	String eid = endpoint.getOtherEndpointId();
-    	ArrayList<String> whiteboards = remoteBoardMap.get(eid);
-    	whiteboards.forEach(this::deleteBoard);
+		// after the boards of the endpoint that are still to be accepted
+		Utils.getInstance().getEventDispatcher().dispatch(endpoint, () -> {
+			String eid = endpoint.getOtherEndpointId();
+			ArrayList<String> whiteboards = remoteBoardMap.remove(eid);
+			if (whiteboards != null) {
+				whiteboards.forEach(this::deleteBoard);
+			}
+		});
 	}
 
 	private void unlistenToPeer(Whiteboard whiteboard) {
@@ -468,6 +721,15 @@ public class WhiteboardApp {
 			Endpoint e = whiteboard.getRemoteSource();
 			e.emit(unlistenBoard, whiteboard.getName());
 			log.info("Unsubscribed board " + whiteboard.getName());
+			String[] parts = parsePeer(whiteboard.getName());
+			boolean subscribed;
+			synchronized (peerBoards) {
+				Set<String> boards = peerBoards.get(parts[0] + ":" + parts[1]);
+				subscribed = boards != null && boards.remove(whiteboard.getName());
+			}
+			if (subscribed) {
+				peerManager.releasePeer(parts[0], Integer.parseInt(parts[1]));
+			}
 		}
 	}
 
@@ -629,12 +891,14 @@ public class WhiteboardApp {
 				log.info("Pushed path to remote board " + selectedBoard.getName()
 						+ ": " + currentPath.toString());
 			} else {
-				if(!selectedBoard.addPath(currentPath, selectedBoard.getVersion())) {
+				long version = selectedBoard.getVersion();
+				if(!selectedBoard.addPath(currentPath, version)) {
 					// some other peer modified the board in between
 					drawSelectedWhiteboard(); // just redraw the screen without the path
 				} else {
 					// was accepted locally, so do remote stuff if needed
-					broadcastChanges(selectedBoard);
+					broadcastChange(selectedBoard, boardPathAccepted, selectedBoard.getName() + "%"
+							+ version + "%" + currentPath.toString());
 				}
 			}
 		} else {
@@ -651,7 +915,8 @@ public class WhiteboardApp {
 				// was accepted locally, so do remote stuff if needed
 				drawSelectedWhiteboard();
 				log.info("Remote path accepted: " + path);
-				broadcastChanges(board);
+				broadcastChange(board, boardPathAccepted, board.getName() + "%"
+						+ remoteVersion + "%" + path.toString());
 				return true;
 			}
 		} else {
@@ -670,13 +935,15 @@ public class WhiteboardApp {
 						+ selectedBoard.getVersion() + "%");
 				log.info("Pushed clear to remote board " + selectedBoard.getName());
 			} else {
-				if(!selectedBoard.clear(selectedBoard.getVersion())) {
+				long version = selectedBoard.getVersion();
+				if(!selectedBoard.clear(version)) {
 					// some other peer modified the board in between
 					drawSelectedWhiteboard();
 				} else {
 					// was accepted locally, so do remote stuff if needed
 					drawSelectedWhiteboard();
-					broadcastChanges(selectedBoard);
+					broadcastChange(selectedBoard, boardClearAccepted, selectedBoard.getName() + "%"
+							+ version + "%");
 				}
 			}
 		} else {
@@ -694,7 +961,7 @@ public class WhiteboardApp {
 			} else {
 				// was accepted locally, so do remote stuff if needed
 				drawSelectedWhiteboard();
-				broadcastChanges(board);
+				broadcastChange(board, boardClearAccepted, board.getName() + "%" + remoteVersion + "%");
 				log.info("Remote clear accepted on " + board.getName());
 				return true;
 			}
@@ -714,12 +981,14 @@ public class WhiteboardApp {
 						+ selectedBoard.getVersion() + "%");
 				log.info("Pushed undo to remote board " + selectedBoard.getName());
 			} else {
-				if(!selectedBoard.undo(selectedBoard.getVersion())) {
+				long version = selectedBoard.getVersion();
+				if(!selectedBoard.undo(version)) {
 					// some other peer modified the board in between
 					drawSelectedWhiteboard();
 				} else {
 					drawSelectedWhiteboard();
-					broadcastChanges(selectedBoard);
+					broadcastChange(selectedBoard, boardUndoAccepted, selectedBoard.getName() + "%"
+							+ version + "%");
 				}
 			}
 		} else {
@@ -735,7 +1004,7 @@ public class WhiteboardApp {
 				return false;
 			} else {
 				drawSelectedWhiteboard();
-				broadcastChanges(board);
+				broadcastChange(board, boardUndoAccepted, board.getName() + "%" + remoteVersion + "%");
 				log.info("Remote undo accepted on " + board.getName());
 				return true;
 			}
@@ -3,8 +3,9 @@ package whiteboard.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Logger;
 
 import whiteboard.managers.endpoint.Endpoint;
@@ -62,6 +63,15 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String sessionError="SESSION_ERROR";
 	
+	/**
+	 * Emitted when the client manager gives up without ever having
+	 * connected to the server, so no other event will be emitted.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String} host:port of the server</li>
+	 * </ul>
+	 */
+	public static final String connectionFailed="CONNECTION_FAILED";
+	
 	/**
 	 * The session protocol for this client, so we can stop the
 	 * session when we need to.
@@ -69,9 +79,9 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private SessionProtocol sessionProtocol;
 	
 	/**
-	 * The socket for this client.
+	 * The socket channel for this client.
 	 */
-	private Socket socket;
+	private SocketChannel channel;
 	
 	/**
 	 * The host to connect to.
@@ -90,6 +100,12 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 
 	private boolean connecting=false;
 	
+	/**
+	 * Whether an endpoint has ever been ready, after which the end of
+	 * each connection is signalled by its session.
+	 */
+	private volatile boolean connected=false;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -124,13 +140,16 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 					Thread.sleep(5000); // short pause before retrying
 				} catch (InterruptedException ignored) {}
 			} else {
-				// connection ended cleanly, so we can terminate this manager
+				// connection ended cleanly, so we can terminate this manager,
+				// unless the host is unknown
+				if (!connected) localEmit(connectionFailed,host+":"+port);
 				return;
 			}
 		}
 		if (connecting) {
 			log.severe("no more retries, giving up");
 			connecting = false;
+			if (!connected) localEmit(connectionFailed,host+":"+port);
 		}
 	}
 
@@ -145,8 +164,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 						     // if errors occur on the connection
 		log.info("attempting to connect to "+host+":"+port);
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
-			Endpoint endpoint = new Endpoint(socket,this);
+			channel=SocketChannel.open(new InetSocketAddress(InetAddress.getByName(host),port));
+			Endpoint endpoint = new Endpoint(channel,this);
 			endpoint.start();
 
 			try {
@@ -161,9 +180,9 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		} catch (IOException e1) {
 			shouldWeRetry=true;
 		} finally {
-			if(socket!=null)
+			if(channel!=null)
 				try {
-					socket.close();
+					channel.close();
 				} catch (IOException e) {
 					//ignore
 				}
@@ -178,6 +197,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
+		connected=true;
 		sessionProtocol = new SessionProtocol(endpoint,this);
 		try {
 			// we need to add it to the endpoint before starting it
@@ -215,7 +235,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("connection with server terminated abruptly");
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 		shouldWeRetry=true;
 	}
 
@@ -227,7 +247,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("server sent an invalid message");
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 	}
 	
 
@@ -239,7 +259,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void endpointTimedOut(Endpoint endpoint,Protocol protocol) {
 		log.severe("server has timed out");
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 		shouldWeRetry=true;
 	}
 
@@ -251,7 +271,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public void protocolViolation(Endpoint endpoint,Protocol protocol) {
 		log.severe("protocol with server has been violated: "+protocol.getProtocolName());
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 	}
 
 	/**
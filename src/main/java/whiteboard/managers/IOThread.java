@@ -2,15 +2,17 @@ package whiteboard.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Logger;
 
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link whiteboard.managers.ServerManager} using
- * {@link whiteboard.managers.ServerManager#acceptClient(Socket)}. Note that the
+ * {@link whiteboard.managers.ServerManager#acceptClient(SocketChannel)}. Note that the
  * {@link whiteboard.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
@@ -21,7 +23,7 @@ import java.util.logging.Logger;
  */
 public class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
-	private ServerSocket serverSocket = null;
+	private ServerSocketChannel serverChannel = null;
 	private int port;
 	private ServerManager serverManager;
 	
@@ -43,7 +45,9 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		serverChannel = ServerSocketChannel.open(); // let's throw this since its potentially unrecoverable
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.bind(new InetSocketAddress(port));
 		this.port=port;
 		this.serverManager=serverManager;
 		setName("IOThread");
@@ -54,9 +58,9 @@ public class IOThread extends Thread {
 	 * Close the server socket and make sure the thread terminates.
 	 */
 	public void shutDown() {
-		if(serverSocket!=null)
+		if(serverChannel!=null)
 			try {
-				serverSocket.close();
+				serverChannel.close();
 			} catch (IOException e) {
 				log.warning("exception closing server socket: "+e.getMessage());
 			}
@@ -75,19 +79,22 @@ public class IOThread extends Thread {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
-			Socket clientSocket;
+		while(!isInterrupted() && serverChannel.isOpen()){
+			SocketChannel clientChannel;
 			try {
-				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
+				clientChannel = serverChannel.accept();
+				log.info("Received connection from "+clientChannel.socket().getInetAddress());
+				serverManager.acceptClient(clientChannel);
+			} catch (ClosedChannelException e) {
+				// shut down while waiting for a connection
+				break;
 			} catch (IOException e) {
 				log.warning("exception accepting connection: "+e.getMessage());
 			} 
 		}
 		log.info("IOThread terminating");
 		try {
-			serverSocket.close();
+			serverChannel.close();
 		} catch (IOException e) {
 			log.warning("exception closing server socket: "+e.getMessage());
 		}
@@ -1,8 +1,11 @@
 package whiteboard.managers;
 
 import java.net.UnknownHostException;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import whiteboard.managers.endpoint.Endpoint;
@@ -55,6 +58,16 @@ public class PeerManager extends Manager {
 	 */
 	public static final String peerError = "PEER_ERROR";
 	
+	/**
+	 * Emitted on a client manager that has given up without ever having
+	 * connected to the other peer.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String} host:port of the other peer</li>
+	 * <li>{@code args[1] instanceof ClientManager}</li>
+	 * </ul>
+	 */
+	public static final String peerUnreachable = "PEER_UNREACHABLE";
+	
 	/**
 	 * ServerManager has been initialized but not started.
 	 * <ul>
@@ -65,9 +78,28 @@ public class PeerManager extends Manager {
 	
 	/**
 	 * The client managers are for connecting to the server and other peers.
+	 * Connecting, releasing and shutting down may run on different threads.
 	 */
 	private Set<ClientManager> clientManagers;
 	
+	/**
+	 * Client managers for connections to other peers that are shared, by
+	 * host:port of the other peer.
+	 */
+	private final Map<String,SharedClient> sharedClients;
+	
+	/**
+	 * A client manager and the number of users it has.
+	 */
+	private static class SharedClient {
+		final ClientManager clientManager;
+		int references=0;
+		
+		SharedClient(ClientManager clientManager) {
+			this.clientManager=clientManager;
+		}
+	}
+	
 	/**
 	 * The server manager is for accepting connections from other peers.
 	 */
@@ -84,7 +116,8 @@ public class PeerManager extends Manager {
 	 * @param myServerPort
 	 */
 	public PeerManager(int myServerPort) {
-		clientManagers = new HashSet<>();
+		clientManagers = ConcurrentHashMap.newKeySet();
+		sharedClients = new HashMap<>();
 		this.myServerPort=myServerPort;
 	}
 	
@@ -107,6 +140,8 @@ public class PeerManager extends Manager {
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
 		ClientManager clientManager = new ClientManager(host,serverPort);
+		// client managers that have finished need not be joined with, nor kept
+		clientManagers.removeIf((other)->other.getState()==Thread.State.TERMINATED);
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -117,10 +152,61 @@ public class PeerManager extends Manager {
 		}).on(ClientManager.sessionError, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			clientManager.emit(peerError, client,clientManager);
+		}).on(ClientManager.connectionFailed, (args)->{
+			String peer = (String)args[0];
+			clientManager.emit(peerUnreachable, peer,clientManager);
 		});
 		return clientManager;
 	}
 	
+	/**
+	 * Connect to another peer, sharing the connection with anyone else that
+	 * is connected to the same peer. Only the first user of a connection
+	 * gets to set it up, before it is started, and every user must call
+	 * {@link #releasePeer(String, int)} when done with it. A connection that
+	 * has ended is replaced by a new one.
+	 * @param host the hostname of the peer to connect to
+	 * @param serverPort the port of the peer to connect to
+	 * @param setup called with a new client manager to add its callbacks
+	 * @return the client manager for the connection, which has been started
+	 * @throws UnknownHostException
+	 * @throws InterruptedException
+	 */
+	public ClientManager acquirePeer(String host, int serverPort,
+			Consumer<ClientManager> setup) throws UnknownHostException, InterruptedException {
+		String peer = host+":"+serverPort;
+		synchronized(sharedClients) {
+			SharedClient shared = sharedClients.get(peer);
+			if(shared==null || shared.clientManager.getState()==Thread.State.TERMINATED) {
+				shared = new SharedClient(connect(serverPort,host));
+				sharedClients.put(peer,shared);
+				setup.accept(shared.clientManager);
+				shared.clientManager.start();
+				log.info("new shared connection to peer: "+peer);
+			}
+			shared.references++;
+			return shared.clientManager;
+		}
+	}
+	
+	/**
+	 * Stop using a connection to another peer, shutting it down if nothing
+	 * else uses it.
+	 * @param host the hostname given to {@link #acquirePeer(String, int, Consumer)}
+	 * @param serverPort the port given to {@link #acquirePeer(String, int, Consumer)}
+	 */
+	public void releasePeer(String host, int serverPort) {
+		String peer = host+":"+serverPort;
+		SharedClient shared;
+		synchronized(sharedClients) {
+			shared = sharedClients.get(peer);
+			if(shared==null || --shared.references>0) return;
+			sharedClients.remove(peer);
+		}
+		log.info("shutting down unused connection to peer: "+peer);
+		shared.clientManager.shutdown();
+	}
+	
 	/**
 	 * Close the server and all remaining connections.
 	 * We will do a graceful shutdown here, to allow any other peers that
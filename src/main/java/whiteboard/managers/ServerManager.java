@@ -1,13 +1,15 @@
 package whiteboard.managers;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import whiteboard.managers.endpoint.Endpoint;
 import whiteboard.managers.endpoint.ProtocolAlreadyRunning;
+import whiteboard.managers.endpoint.SelectorPool;
 import whiteboard.protocols.IRequestReplyProtocol;
 import whiteboard.protocols.Protocol;
 import whiteboard.protocols.event.EventProtocol;
@@ -16,6 +18,7 @@ import whiteboard.protocols.keepalive.IKeepAliveProtocolHandler;
 import whiteboard.protocols.keepalive.KeepAliveProtocol;
 import whiteboard.protocols.session.ISessionProtocolHandler;
 import whiteboard.protocols.session.SessionProtocol;
+import whiteboard.utils.Utils;
 
 
 /**
@@ -97,6 +100,17 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private IOThread ioThread;
 	
+	/**
+	 * Number of selector threads to multiplex client connections over, or 0
+	 * to use a thread per connection.
+	 */
+	private int selectorThreads=0;
+	
+	/**
+	 * The selector threads, if they are used.
+	 */
+	private SelectorPool selectorPool=null;
+	
 	/**
 	 * Keep a track of endpoints that
 	 * have not yet terminated, so that we can wait/ask/force for them to finish
@@ -120,6 +134,16 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private volatile boolean vaderShutdown=false;
 	
+	/**
+	 * How often in ms to check whether the clients are alive, all at once.
+	 */
+	public static final int keepAliveSweepInterval=5000;
+	
+	/**
+	 * Set when the server has terminated, to stop checking the clients.
+	 */
+	private volatile boolean terminated=false;
+	
 	/**
 	 * Password if given
 	 */
@@ -148,6 +172,17 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
+	/**
+	 * Use a pool of selector threads to read all of the client connections,
+	 * rather than a thread per connection. Must be called before the server
+	 * manager is started.
+	 * @param selectorThreads the number of selector threads, or 0 to use
+	 * a thread per connection
+	 */
+	public void setSelectorThreads(int selectorThreads) {
+		this.selectorThreads=selectorThreads;
+	}
+	
 	/**
 	 * Usually a single shutdown method would suffice, but for servers
 	 * it is convenient to have different methods, depending on how the
@@ -190,11 +225,14 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
+			if(selectorThreads>0) selectorPool = new SelectorPool(selectorThreads);
 			ioThread = new IOThread(port,this);
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
+			if(selectorPool!=null) selectorPool.shutDown();
 			return;
 		}
+		Utils.getInstance().setTimeout(this::checkKeepAlives, keepAliveSweepInterval);
 		
 		try {
 			// just wait for this thread to terminate
@@ -255,18 +293,44 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				currentEndpoints.forEach(Endpoint::close);
 			}
 		}
+		if(selectorPool!=null) selectorPool.shutDown();
+		terminated=true;
 		log.info("terminated");
 	}
 	
+	/**
+	 * Check whether each of the clients is alive, with a single sweep
+	 * over all of them rather than a timeout for each, and keep doing
+	 * so every {@link #keepAliveSweepInterval} ms until the server has terminated.
+	 */
+	private void checkKeepAlives() {
+		if(terminated) return;
+		ArrayList<Endpoint> currentEndpoints;
+		synchronized(liveEndpoints) {
+			currentEndpoints = new ArrayList<>(liveEndpoints);
+		}
+		long now = System.currentTimeMillis();
+		for(Endpoint endpoint : currentEndpoints) {
+			KeepAliveProtocol keepAliveProtocol =
+					(KeepAliveProtocol) endpoint.getProtocol(KeepAliveProtocol.protocolName);
+			if(keepAliveProtocol!=null) keepAliveProtocol.checkClientTimeout(now);
+		}
+		Utils.getInstance().setTimeout(this::checkKeepAlives, keepAliveSweepInterval);
+	}
+	
 	/**
 	 * A new client has connected to the server. We need to keep
 	 * a set of all clients that have connected, so that we can
 	 * do global operations, like broadcast data to all clients.
-	 * @param clientSocket the socket connection for the client.
+	 * @param clientChannel the socket connection for the client.
 	 */
-	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
-		endpoint.start();
+	public void acceptClient(SocketChannel clientChannel) {
+		Endpoint endpoint = new Endpoint(clientChannel,this);
+		if(selectorPool!=null) {
+			selectorPool.register(endpoint);
+		} else {
+			endpoint.start();
+		}
 	}
 	
 	/**
@@ -432,7 +496,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void protocolViolation(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" violated the protocol "+protocol.getProtocolName());
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 	}
 	
 	/**
@@ -445,7 +509,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 	}
 	
 	/**
@@ -457,7 +521,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("client sent an invalid message "+endpoint.getOtherEndpointId());
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 	}
 
 	/**
@@ -470,7 +534,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
 		localEmit(sessionError,endpoint);
-		endpoint.close();
+		endpoint.closeNow();
 	}
 
 	
@@ -0,0 +1,26 @@
+package whiteboard.managers.endpoint;
+
+/**
+ * What an endpoint does when the other endpoint is not reading messages as
+ * fast as they are being sent, i.e. when the bytes queued to be written reach
+ * the endpoint's high watermark. The endpoint stays saturated until the queue
+ * has been drained to below its low watermark.
+ *
+ * @see {@link whiteboard.managers.endpoint.Endpoint#setBackpressure(long, long, BackpressurePolicy)}
+ */
+public enum BackpressurePolicy {
+	/**
+	 * Senders wait until the endpoint is no longer saturated.
+	 */
+	BLOCK,
+	/**
+	 * Queued events that are superseded by a newer event with the same
+	 * supersede key are dropped, while everything else is queued regardless.
+	 * @see {@link whiteboard.managers.endpoint.Endpoint#supersedeEvent(String, java.util.function.Function)}
+	 */
+	DROP_SUPERSEDED,
+	/**
+	 * The endpoint is treated as having disconnected abruptly.
+	 */
+	DISCONNECT
+}
@@ -0,0 +1,315 @@
+package whiteboard.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import whiteboard.protocols.InvalidMessage;
+import whiteboard.protocols.Message;
+import whiteboard.protocols.event.EventBatch;
+import whiteboard.protocols.event.EventReply;
+import whiteboard.protocols.event.EventRequest;
+import whiteboard.protocols.keepalive.KeepAliveReply;
+import whiteboard.protocols.keepalive.KeepAliveRequest;
+import whiteboard.protocols.session.SessionStartReply;
+import whiteboard.protocols.session.SessionStartRequest;
+import whiteboard.protocols.session.SessionStopReply;
+import whiteboard.protocols.session.SessionStopRequest;
+
+/**
+ * Compact binary encoding of the protocol messages, used in place of JSON
+ * once both endpoints have agreed to it (see
+ * {@link whiteboard.managers.endpoint.Endpoint#binaryCapability}). A message
+ * is encoded as:
+ * <ul>
+ * <li>one byte identifying the message, see {@link #messageId(Message)}</li>
+ * <li>the timeout id as an unsigned varint, 0 if there is none</li>
+ * <li>the parameters of the message, in a fixed order, strings as an
+ * unsigned varint length followed by that many bytes of UTF-8 and numbers
+ * as unsigned varints</li>
+ * </ul>
+ * Names, protocol names and types are implied by the message id, so nothing
+ * is allocated to encode a message other than the frame, and nothing is
+ * allocated to decode one other than the message and its string parameters.
+ * The data of an event is not decoded until it is asked for.
+ * Messages that have no id are sent as JSON.
+ * <br/>
+ * If event names are sent as ids (see
+ * {@link whiteboard.managers.endpoint.EventNames}) an event whose name has an
+ * id is encoded with the message id {@link #namedEventId(int)} gives, and in
+ * place of its name has an unsigned varint of the name's id shifted left by
+ * one, with the lowest bit set if the name follows as a string because this
+ * is the first time the id is used.
+ * <br/>
+ * A batch of events has the number of events, then the name and data of
+ * each event, then its sequence number, 0 if it is not windowed.
+ *
+ * @see {@link whiteboard.managers.endpoint.FrameCodec}
+ */
+class BinaryCodec {
+
+	/*
+	 * Message ids, which must never be reused for a different message, since
+	 * the other endpoint may be running an older version.
+	 */
+	static final int keepAliveRequestId = 0;
+	static final int keepAliveReplyId = 1;
+	static final int sessionStartRequestId = 2;
+	static final int sessionStartReplyId = 3;
+	static final int sessionStopRequestId = 4;
+	static final int sessionStopReplyId = 5;
+	static final int eventId = 6;
+	static final int eventReplyId = 7;
+	static final int windowedEventId = 8;
+	static final int eventAckId = 9;
+	static final int eventByNameId = 10;
+	static final int windowedEventByNameId = 11;
+	static final int eventBatchId = 12;
+
+	private BinaryCodec() {}
+
+	/**
+	 * 
+	 * @param msg
+	 * @return the id of the message, or -1 if it has no binary encoding
+	 */
+	static int messageId(Message msg) {
+		switch(msg.getName()) {
+		case KeepAliveRequest.name: return keepAliveRequestId;
+		case KeepAliveReply.name: return keepAliveReplyId;
+		case SessionStartRequest.name: return sessionStartRequestId;
+		case SessionStartReply.name: return sessionStartReplyId;
+		case SessionStopRequest.name: return sessionStopRequestId;
+		case SessionStopReply.name: return sessionStopReplyId;
+		case EventRequest.name:
+			return ((EventRequest)msg).getSeq()==0 ? eventId : windowedEventId;
+		case EventReply.name:
+			return ((EventReply)msg).getAck()==0 ? eventReplyId : eventAckId;
+		case EventBatch.name: return eventBatchId;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * @param id of an event, {@link #eventId} or {@link #windowedEventId}
+	 * @return the id of the same event with its name sent as an id
+	 */
+	static int namedEventId(int id) {
+		return id==eventId ? eventByNameId : windowedEventByNameId;
+	}
+	
+	/**
+	 * @param id of the message, from {@link #messageId(Message)} or
+	 * {@link #namedEventId(int)}
+	 * @param msg
+	 * @param nameRef the id of the event name shifted left by one, with the
+	 * lowest bit set if the name is sent as well, only used for events
+	 * whose names are sent as ids
+	 * @return the number of bytes in the binary encoding of the message
+	 */
+	static int encodedLength(int id, Message msg, long nameRef) {
+		int length = 1+varintLength(msg.getTimeoutId());
+		switch(id) {
+		case sessionStartRequestId:
+			length+=stringLength(((SessionStartRequest)msg).getCapabilities());
+			break;
+		case sessionStartReplyId:
+			length+=stringLength(((SessionStartReply)msg).getCapabilities());
+			break;
+		case eventId:
+		case windowedEventId:
+		case eventByNameId:
+		case windowedEventByNameId:
+			EventRequest eventRequest = (EventRequest)msg;
+			if(id==eventId || id==windowedEventId) {
+				length+=stringLength(eventRequest.getEventName());
+			} else {
+				length+=varintLength(nameRef);
+				if((nameRef & 1)!=0) length+=stringLength(eventRequest.getEventName());
+			}
+			length+=stringLength(eventRequest.getEventData());
+			if(id==windowedEventId || id==windowedEventByNameId) length+=varintLength(eventRequest.getSeq());
+			break;
+		case eventAckId:
+			length+=varintLength(((EventReply)msg).getAck());
+			break;
+		case eventBatchId:
+			EventBatch eventBatch = (EventBatch)msg;
+			length+=varintLength(eventBatch.size());
+			for(int i=0;i<eventBatch.size();i++) {
+				length+=stringLength(eventBatch.getEventName(i));
+				length+=stringLength(eventBatch.getEventData(i));
+			}
+			length+=varintLength(eventBatch.getSeq());
+			break;
+		}
+		return length;
+	}
+
+	/**
+	 * Write the binary encoding of the message into a heap buffer, which
+	 * must have {@link #encodedLength(int, Message, long)} bytes remaining.
+	 * @param id of the message, from {@link #messageId(Message)} or
+	 * {@link #namedEventId(int)}
+	 * @param msg
+	 * @param nameRef as for {@link #encodedLength(int, Message, long)}
+	 * @param buffer
+	 */
+	static void encode(int id, Message msg, long nameRef, ByteBuffer buffer) {
+		buffer.put((byte)id);
+		putVarint(msg.getTimeoutId(),buffer);
+		switch(id) {
+		case sessionStartRequestId:
+			putString(((SessionStartRequest)msg).getCapabilities(),buffer);
+			break;
+		case sessionStartReplyId:
+			putString(((SessionStartReply)msg).getCapabilities(),buffer);
+			break;
+		case eventId:
+		case windowedEventId:
+		case eventByNameId:
+		case windowedEventByNameId:
+			EventRequest eventRequest = (EventRequest)msg;
+			if(id==eventId || id==windowedEventId) {
+				putString(eventRequest.getEventName(),buffer);
+			} else {
+				putVarint(nameRef,buffer);
+				if((nameRef & 1)!=0) putString(eventRequest.getEventName(),buffer);
+			}
+			putString(eventRequest.getEventData(),buffer);
+			if(id==windowedEventId || id==windowedEventByNameId) putVarint(eventRequest.getSeq(),buffer);
+			break;
+		case eventAckId:
+			putVarint(((EventReply)msg).getAck(),buffer);
+			break;
+		case eventBatchId:
+			EventBatch eventBatch = (EventBatch)msg;
+			putVarint(eventBatch.size(),buffer);
+			for(int i=0;i<eventBatch.size();i++) {
+				putString(eventBatch.getEventName(i),buffer);
+				putString(eventBatch.getEventData(i),buffer);
+			}
+			putVarint(eventBatch.getSeq(),buffer);
+			break;
+		}
+	}
+
+	/**
+	 * Decode a message from its binary encoding.
+	 * @param buffer heap buffer holding exactly the encoded message between
+	 * its position and limit, which is consumed
+	 * @param names the event names received so far, which learns the names
+	 * the message gives ids to, or null if names are not sent as ids
+	 * @return the message
+	 * @throws InvalidMessage if the bytes are not a valid encoding
+	 */
+	static Message decode(ByteBuffer buffer, EventNames names) throws InvalidMessage {
+		if(!buffer.hasRemaining()) throw new InvalidMessage();
+		int id = buffer.get();
+		long timeoutId = getVarint(buffer);
+		Message msg;
+		switch(id) {
+		case keepAliveRequestId: msg = new KeepAliveRequest(); break;
+		case keepAliveReplyId: msg = new KeepAliveReply(); break;
+		case sessionStartRequestId: msg = new SessionStartRequest(getString(buffer)); break;
+		case sessionStartReplyId: msg = new SessionStartReply(getString(buffer)); break;
+		case sessionStopRequestId: msg = new SessionStopRequest(); break;
+		case sessionStopReplyId: msg = new SessionStopReply(); break;
+		case eventId: msg = new EventRequest(getString(buffer),getUtf8(buffer)); break;
+		case eventReplyId: msg = new EventReply(); break;
+		case windowedEventId:
+			EventRequest eventRequest = new EventRequest(getString(buffer),getUtf8(buffer));
+			eventRequest.setSeq(getVarint(buffer));
+			msg = eventRequest;
+			break;
+		case eventAckId: msg = new EventReply(getVarint(buffer)); break;
+		case eventByNameId:
+		case windowedEventByNameId:
+			if(names==null) throw new InvalidMessage();
+			long nameRef = getVarint(buffer);
+			if((nameRef & 1)!=0) {
+				if(nameRef>>>1>=EventNames.maxNames) throw new InvalidMessage();
+				if(!names.define((int)(nameRef>>>1),getString(buffer))) throw new InvalidMessage();
+			}
+			String eventName = names.nameOf(nameRef>>>1);
+			if(eventName==null) throw new InvalidMessage();
+			EventRequest namedEvent = new EventRequest(eventName,getUtf8(buffer));
+			if(id==windowedEventByNameId) namedEvent.setSeq(getVarint(buffer));
+			msg = namedEvent;
+			break;
+		case eventBatchId:
+			long size = getVarint(buffer);
+			// every event takes at least two bytes
+			if(size>buffer.remaining()/2) throw new InvalidMessage();
+			EventBatch eventBatch = new EventBatch();
+			for(long i=0;i<size;i++) {
+				eventBatch.add(getString(buffer),getString(buffer));
+			}
+			eventBatch.setSeq(getVarint(buffer));
+			msg = eventBatch;
+			break;
+		default: throw new InvalidMessage();
+		}
+		if(buffer.hasRemaining()) throw new InvalidMessage();
+		if(timeoutId!=0) msg.setTimeoutId(timeoutId);
+		return msg;
+	}
+
+	private static int stringLength(String s) {
+		int length = FrameCodec.utf8Length(s);
+		return varintLength(length)+length;
+	}
+
+	private static void putString(String s, ByteBuffer buffer) {
+		putVarint(FrameCodec.utf8Length(s),buffer);
+		FrameCodec.putUtf8(s,buffer);
+	}
+
+	private static String getString(ByteBuffer buffer) throws InvalidMessage {
+		long length = getVarint(buffer);
+		if(length>buffer.remaining()) throw new InvalidMessage();
+		int position = buffer.position();
+		String s = new String(buffer.array(),buffer.arrayOffset()+position,(int)length,
+				StandardCharsets.UTF_8);
+		buffer.position(position+(int)length);
+		return s;
+	}
+
+	/**
+	 * A copy of the bytes of a string, since the buffer is reused, which
+	 * are only decoded if the string is asked for.
+	 */
+	private static byte[] getUtf8(ByteBuffer buffer) throws InvalidMessage {
+		long length = getVarint(buffer);
+		if(length>buffer.remaining()) throw new InvalidMessage();
+		byte[] utf8 = new byte[(int)length];
+		buffer.get(utf8);
+		return utf8;
+	}
+
+	private static int varintLength(long value) {
+		int length = 1;
+		while((value>>>=7)!=0) {
+			length++;
+		}
+		return length;
+	}
+
+	private static void putVarint(long value, ByteBuffer buffer) {
+		while((value & ~0x7fL)!=0) {
+			buffer.put((byte)((value & 0x7f)|0x80));
+			value>>>=7;
+		}
+		buffer.put((byte)value);
+	}
+
+	private static long getVarint(ByteBuffer buffer) throws InvalidMessage {
+		long value = 0;
+		for(int shift=0;shift<64;shift+=7) {
+			if(!buffer.hasRemaining()) throw new InvalidMessage();
+			byte b = buffer.get();
+			value|=(long)(b & 0x7f)<<shift;
+			if(b>=0) return value;
+		}
+		throw new InvalidMessage();
+	}
+}
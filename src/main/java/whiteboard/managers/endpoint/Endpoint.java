@@ -1,39 +1,55 @@
 package whiteboard.managers.endpoint;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
+import whiteboard.protocols.event.EventReply;
 import whiteboard.protocols.event.EventRequest;
+import whiteboard.protocols.keepalive.KeepAliveProtocol;
+import whiteboard.utils.EventDispatcher;
 import whiteboard.utils.Eventable;
+import whiteboard.utils.TimingWheel;
 import whiteboard.utils.Utils;
 import whiteboard.protocols.InvalidMessage;
 import whiteboard.protocols.Message;
 import whiteboard.protocols.Protocol;
+import whiteboard.protocols.ProtocolRegistry;
 import whiteboard.protocols.event.EventProtocol;
-import whiteboard.protocols.event.IEventProtocolHandler;
 import whiteboard.protocols.ICallback;
 import whiteboard.protocols.IRequestReplyProtocol;
-import whiteboard.protocols.keepalive.IKeepAliveProtocolHandler;
-import whiteboard.protocols.keepalive.KeepAliveProtocol;
-import whiteboard.protocols.session.ISessionProtocolHandler;
-import whiteboard.protocols.session.SessionProtocol;
 
 /**
- * The endpoint is a thread that blocking reads incoming messages (on a socket)
- * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
- * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * The endpoint is a thread that blocking reads incoming messages (on a socket
+ * channel) and sends them to the appropriate protocol for processing; thus a
+ * thread-per-connection model is being used. Alternatively the endpoint can be
+ * given to a {@link whiteboard.managers.endpoint.SelectorPool} instead of being
+ * started, in which case one of the pool's selector threads reads the incoming
+ * messages for it, along with those of many other endpoints. It also provides
+ * a synchronized method to send data to the socket which will be sent to the
+ * other endpoint. Sent messages are queued and written to the socket by a
+ * writer, which is a thread of its own when the endpoint is a thread, and
+ * is the selector thread otherwise. Any number of protocols can be handled by the endpoint, but
+ * there can be only one instance of each protocol running at a time.
  * 
  * @see {@link whiteboard.managers.Manager}
+ * @see {@link whiteboard.managers.endpoint.SelectorPool}
  * @see {@link whiteboard.protocols.session.SessionProtocol}
  * @see {@link whiteboard.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
@@ -43,9 +59,84 @@ public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
 	/**
-	 * The socket this endpoint is wrapped around.
+	 * Capability to send messages in the framed format, which is not limited
+	 * to messages of 65535 bytes like the legacy format is.
+	 * @see {@link whiteboard.managers.endpoint.FrameCodec}
 	 */
-	private Socket socket;
+	public static final String frame32Capability = "FRAME32";
+	
+	/**
+	 * Capability to send messages in a compact binary encoding rather than
+	 * JSON, which requires the framed format.
+	 * @see {@link whiteboard.managers.endpoint.BinaryCodec}
+	 */
+	public static final String binaryCapability = "BINARY";
+	
+	/**
+	 * Capability to send large messages compressed, which requires the
+	 * framed format.
+	 * @see {@link whiteboard.managers.endpoint.FrameCodec}
+	 */
+	public static final String deflateCapability = "DEFLATE";
+	
+	/**
+	 * Capability to send events in a window that is acknowledged
+	 * cumulatively, rather than one reply per event.
+	 * @see {@link whiteboard.protocols.event.EventProtocol}
+	 */
+	public static final String eventWindowCapability = "EVENT_WINDOW";
+	
+	/**
+	 * Capability to send event names as ids, from the second time a name is
+	 * sent on, which requires the binary encoding.
+	 * @see {@link whiteboard.managers.endpoint.EventNames}
+	 */
+	public static final String eventNamesCapability = "EVENT_NAMES";
+	
+	/**
+	 * Capability to send many events in a single message.
+	 * @see {@link whiteboard.protocols.event.EventBatch}
+	 */
+	public static final String eventBatchCapability = "EVENT_BATCH";
+	
+	/**
+	 * Capability to send large messages in chunks, so that control traffic
+	 * can be sent between them, which requires the framed format.
+	 * @see {@link whiteboard.managers.endpoint.FrameCodec#chunk(java.nio.ByteBuffer)}
+	 */
+	public static final String chunkCapability = "CHUNKED";
+	
+	/**
+	 * Capability to send KeepAlive requests only when the connection is idle,
+	 * since the other endpoint takes any message as a sign of life.
+	 * @see {@link whiteboard.protocols.keepalive.KeepAliveProtocol}
+	 */
+	public static final String idleKeepAliveCapability = "IDLE_KEEPALIVE";
+	
+	/**
+	 * Capability to keep copies of boards up to date with the changes made
+	 * to them, rather than sending all of a board after each change.
+	 * @see {@link whiteboard.app.WhiteboardApp}
+	 */
+	public static final String boardChangesCapability = "BOARD_CHANGES";
+	
+	/**
+	 * The capabilities that an endpoint can offer to the other endpoint.
+	 */
+	private static final List<String> supportedCapabilities = List.of(frame32Capability,
+			binaryCapability,deflateCapability,eventWindowCapability,eventNamesCapability,
+			eventBatchCapability,chunkCapability,idleKeepAliveCapability,boardChangesCapability);
+	
+	/**
+	 * The socket channel this endpoint is wrapped around.
+	 */
+	private final SocketChannel channel;
+	
+	/**
+	 * The id of the other endpoint, kept since the address of a
+	 * channel is not available once it is closed.
+	 */
+	private final String otherEndpointId;
 	
 	/**
 	 * The manager to report to when things happen.
@@ -53,19 +144,92 @@ public class Endpoint extends Eventable {
 	private IEndpointHandler manager;
 	
 	/**
-	 * The input data stream on the socket.
+	 * Frames the bytes read from and written to the channel.
+	 */
+	private final FrameCodec codec;
+	
+	/**
+	 * Bytes queued to be written at which an endpoint is no longer saturated,
+	 * unless set otherwise.
+	 */
+	public static final long defaultLowWatermark = 4*1024*1024;
+	
+	/**
+	 * Bytes queued to be written at which an endpoint becomes saturated,
+	 * unless set otherwise.
+	 */
+	public static final long defaultHighWatermark = 8*1024*1024;
+	
+	/**
+	 * Least timeout in ms given by the round trip time, however small it
+	 * is. A message always waits at least the time interval of its protocol,
+	 * see {@link #timeoutRemaining(long, int)}.
+	 */
+	public static final int minTimeout = 1000;
+	
+	/**
+	 * Most time in ms that the round trip time can make a message wait for
+	 * a reply.
 	 */
-	private DataInputStream in=null;
+	public static final int maxTimeout = 60000;
 	
 	/**
-	 * The output data stream on the socket.
+	 * Granularity in ms of the clock used to time round trips.
 	 */
-	private DataOutputStream out=null;
+	private static final int clockGranularity = 10;
 	
 	/**
-	 * A protocol name to protocol map, of protocols in use.
+	 * How long close waits for queued messages to be written, in ms.
 	 */
-	private final Map<String,Protocol> protocols;
+	private static final long closeFlushTimeout = 5000;
+	
+	/**
+	 * Messages waiting to be written to the channel.
+	 */
+	private final OutboundQueue outQueue;
+	
+	/**
+	 * Event name to a function of the event data that gives the key of
+	 * events which supersede each other, whatever their names.
+	 */
+	private final Map<String,Function<String,String>> supersedableEvents;
+	
+	/**
+	 * Names of the events that can be dropped in favour of a newer event
+	 * with the same key, but that do not drop any events themselves.
+	 */
+	private final Set<String> droppableEvents;
+	
+	/**
+	 * Whether control traffic is sent ahead of bulk traffic, which it is
+	 * from the upgrade on. Until then everything is sent in order, so that
+	 * nothing overtakes the upgrade marker.
+	 * @see {@link #isControl(Message)}
+	 */
+	private boolean prioritised=false;
+	
+	/**
+	 * The thread that writes to the channel, either the writer thread
+	 * or the selector thread.
+	 */
+	private volatile Thread writer=null;
+	
+	/**
+	 * The key of the channel, when it is registered with a selector.
+	 */
+	private volatile SelectionKey key=null;
+	
+	/**
+	 * The protocols in use, by protocol id. Replaced rather than changed,
+	 * so that messages are routed without a lock.
+	 * @see {@link whiteboard.protocols.ProtocolRegistry#getProtocolId(String)}
+	 */
+	private volatile Protocol[] protocols = new Protocol[0];
+	
+	/**
+	 * Held to change the protocols in use.
+	 */
+	private final Object protocolsLock = new Object();
 	
 	/**
 	 * Timeout id to use.
@@ -73,9 +237,85 @@ public class Endpoint extends Eventable {
 	private long timeoutId=1;
 	
 	/**
-	 * Oustanding ids
+	 * A message sent that is waiting for a reply.
+	 */
+	private static class InFlight {
+		/**
+		 * Time in ms that the message was sent.
+		 */
+		final long sentAt;
+		final int timeInterval;
+		final ICallback timeoutCallback;
+		
+		/**
+		 * The timeout currently set, replaced when the endpoint is still
+		 * being heard from when it expires.
+		 */
+		TimingWheel.Timeout timeout;
+		
+		InFlight(long sentAt, int timeInterval, ICallback timeoutCallback) {
+			this.sentAt=sentAt;
+			this.timeInterval=timeInterval;
+			this.timeoutCallback=timeoutCallback;
+		}
+	}
+	
+	/**
+	 * The messages sent that are waiting for a reply, by timeout
+	 * id. An entry is removed when the reply arrives, when the
+	 * timeout expires, when the message is dropped or when the endpoint
+	 * closes, so the table only ever holds the messages in flight.
+	 */
+	private final Map<Long,InFlight> inFlight;
+	
+	/*
+	 * Round trip time, estimated as in RFC 6298 from the time between
+	 * sending a message and receiving its reply. Only updated by the
+	 * thread that reads the channel.
+	 */
+	
+	/**
+	 * Smoothed round trip time in ms, negative until it is first measured.
+	 */
+	private volatile double smoothedRtt=-1;
+	
+	/**
+	 * Round trip time variation in ms.
+	 */
+	private volatile double rttVariance=0;
+	
+	/**
+	 * The capabilities agreed with the other endpoint.
+	 */
+	private volatile Set<String> capabilities = Collections.emptySet();
+	
+	/**
+	 * Time in ms that anything was last read from the channel, even part
+	 * of a frame.
+	 */
+	private volatile long lastReceived;
+	
+	/**
+	 * Time in ms that the writer last wrote anything to the channel.
 	 */
-	private final Set<Long> outstandingIds;
+	private volatile long lastWritten;
+	
+	/**
+	 * Time in ms that the writer last caught up with a backlog of frames,
+	 * by when every frame queued before had been written.
+	 */
+	private volatile long lastCaughtUp;
+	
+	/**
+	 * Whether the writer has frames left over from its last write, only
+	 * used by the writer.
+	 */
+	private boolean backlogged=false;
+	
+	/**
+	 * Time in ms that a frame was last queued to be written to the channel.
+	 */
+	private volatile long lastSent;
 	
 	/**
 	 * stopped flag
@@ -83,21 +323,35 @@ public class Endpoint extends Eventable {
 	private volatile boolean stopped=true; // the use of send will return false always
 	
 	/**
-	 * Initialise the endpoint with a socket and a manager.
-	 * @param socket
+	 * Set once the endpoint has started closing, so that it only closes once.
+	 */
+	private boolean closing=false;
+	
+	/**
+	 * Initialise the endpoint with a connected socket channel and a manager.
+	 * @param channel
 	 * @param manager
 	 */
-	public Endpoint(Socket socket, IEndpointHandler manager) {
-		this.socket = socket;
+	public Endpoint(SocketChannel channel, IEndpointHandler manager) {
+		this.channel = channel;
 		this.manager = manager;
-		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
+		Socket socket = channel.socket();
+		otherEndpointId = socket.getInetAddress().toString()+":"+socket.getPort();
+		codec = new FrameCodec();
+		outQueue = new OutboundQueue(defaultLowWatermark,defaultHighWatermark,
+				BackpressurePolicy.BLOCK,this::frameDropped);
+		supersedableEvents = new ConcurrentHashMap<>();
+		droppableEvents = ConcurrentHashMap.newKeySet();
+		inFlight = new HashMap<>();
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
 	 * Send a Message on the socket for this endpoint. This is synchronized
 	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * The message is queued and will be written by the writer; this only waits
+	 * if the endpoint is saturated and the backpressure policy is to block,
+	 * and never for control traffic.
 	 * @param msg
 	 * @return true if the message was sent, false otherwise
 	 */
@@ -105,8 +359,15 @@ public class Endpoint extends Eventable {
 		if(stopped) return false;
 		try {
 			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			boolean control=!prioritised || isControl(msg);
+			String supersedeKey=supersedeKey(msg);
+			ByteBuffer frame=codec.encode(msg,supersedeKey!=null);
+			write(new OutboundQueue.Frame(control ? new ByteBuffer[] {frame} : codec.chunk(frame),
+					supersedeKey,supersedeKey!=null && supersedes(msg),msg.getTimeoutId(),control));
+			if(!control) awaitCapacity();
+		} catch (ClosedChannelException e) {
+			// the writer has already failed or the endpoint is closed
+			return false;
 		} catch (IOException e) {
 			manager.endpointDisconnectedAbruptly(this);
 			return false;
@@ -114,10 +375,192 @@ public class Endpoint extends Eventable {
 		return true;
 	}
 	
+	/**
+	 * Keepalives and event replies are control traffic, which is sent ahead
+	 * of the bulk traffic that is queued, so that a large message does not
+	 * delay them until the other endpoint times out. Session messages are
+	 * not, since they must not overtake the events sent before them.
+	 * @param msg
+	 * @return true if the message is control traffic
+	 */
+	private static boolean isControl(Message msg) {
+		return msg instanceof EventReply
+				|| msg.getProtocolName().equals(KeepAliveProtocol.protocolName);
+	}
+	
+	/**
+	 * 
+	 * @param msg
+	 * @return the key of the messages that the message supersedes, or null
+	 * if it does not supersede any
+	 * @see {@link #supersedeEvent(String, Function)}
+	 */
+	public String supersedeKey(Message msg) {
+		if(supersedableEvents.isEmpty() || !(msg instanceof EventRequest)) return null;
+		EventRequest eventRequest = (EventRequest)msg;
+		Function<String,String> keyOf = supersedableEvents.get(eventRequest.getEventName());
+		if(keyOf==null) return null;
+		return keyOf.apply(eventRequest.getEventData());
+	}
+	
+	/**
+	 * A queued message was dropped because it was superseded, so no reply
+	 * will be seen for it and it must not time out.
+	 * @param droppedTimeoutId
+	 */
+	private void frameDropped(long droppedTimeoutId) {
+		cancelTimeout(droppedTimeoutId);
+	}
+	
+	/**
+	 * Stop waiting for a reply to a message.
+	 * @param id timeout id of the message
+	 */
+	private InFlight cancelTimeout(long id) {
+		InFlight request;
+		synchronized(inFlight) {
+			request=inFlight.remove(id);
+			if(request!=null) request.timeout.cancel();
+		}
+		return request;
+	}
+	
+	/**
+	 * The timeout of a message has expired. It has only timed out if
+	 * nothing else has been heard from the other endpoint for a while,
+	 * otherwise the timeout is set again.
+	 * @param id timeout id of the message
+	 * @see {@link #timeoutRemaining(long, int)}
+	 */
+	private void checkTimeout(long id) {
+		InFlight request;
+		synchronized(inFlight) {
+			request=inFlight.get(id);
+			if(request==null) return;
+			long remaining=timeoutRemaining(request.sentAt,request.timeInterval);
+			if(remaining>0) {
+				request.timeout=Utils.getInstance().setTimeout(()->checkTimeout(id),remaining);
+				return;
+			}
+			inFlight.remove(id);
+		}
+		request.timeoutCallback.callback();
+	}
+	
+	/**
+	 * Queue a frame to be written to the channel, waking the writer up if
+	 * needed. Callers must be synchronized so that frames are queued in the
+	 * order they were encoded.
+	 * @param frame
+	 * @throws IOException if the endpoint can no longer write, or the
+	 * backpressure policy is to disconnect
+	 */
+	private void write(OutboundQueue.Frame frame) throws IOException {
+		synchronized(outQueue) {
+			if(outQueue.add(frame) && key!=null) {
+				key.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+				key.selector().wakeup();
+			}
+		}
+		lastSent=System.currentTimeMillis();
+	}
+	
+	/**
+	 * Wait while the endpoint is saturated and the backpressure policy is
+	 * to block, after queueing bulk traffic. The endpoint is unlocked while
+	 * waiting, however many times the caller has locked it, so that control
+	 * traffic can still be sent. The writer wakes the senders up once the
+	 * queue is down to its low watermark, see {@link #wakeSenders()}. Threads
+	 * that must not wait, see {@link #canWait()}, have their frames queued
+	 * regardless. Must be called with the endpoint locked.
+	 * @throws IOException if the endpoint can no longer write
+	 */
+	private void awaitCapacity() throws IOException {
+		if(!canWait()) return;
+		try {
+			while(outQueue.mustWait()) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+	
+	/**
+	 * Write the frames that are queued, with a single gathered write. 
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		int buffers = outQueue.batch();
+		long written = channel.write(outQueue.getBatch(),0,buffers);
+		long now = System.currentTimeMillis();
+		if(written>0) lastWritten=now;
+		boolean empty, relieved;
+		synchronized(outQueue) {
+			boolean blocking=outQueue.mustWait();
+			empty=outQueue.written(written);
+			relieved=blocking && !outQueue.mustWait();
+			if(empty && key!=null) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+		if(relieved) wakeSenders();
+		if(!empty) {
+			backlogged=true;
+		} else if(backlogged) {
+			backlogged=false;
+			lastCaughtUp=now;
+		}
+	}
+	
+	/**
+	 * Wake up the senders waiting in {@link #awaitCapacity()}. A selector
+	 * thread leaves it to the timer thread, since it must not wait for the
+	 * lock of one endpoint while its others have traffic.
+	 */
+	private void wakeSenders() {
+		if(key!=null) {
+			Utils.getInstance().setTimeout(()->{
+				synchronized(this) {
+					notifyAll();
+				}
+			},0);
+		} else {
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Write queued frames until the endpoint is closed, when the endpoint
+	 * is a thread.
+	 */
+	private void writeFrames() {
+		try {
+			while(outQueue.await()) {
+				flush();
+			}
+		} catch (IOException e) {
+			writeFailed();
+		} catch (InterruptedException e) {
+			// the endpoint is closing
+		}
+	}
+	
+	/**
+	 * The channel can no longer be written to.
+	 */
+	private void writeFailed() {
+		// wake up anyone waiting to queue a frame before reporting
+		outQueue.close();
+		if(!stopped) manager.endpointDisconnectedAbruptly(this);
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
-	 * is triggered if no reply to the message was seen within the given
-	 * time interval.
+	 * is triggered if no reply to the message was seen in time, see
+	 * {@link #timeoutRemaining(long, int)}.
 	 * @param msg
 	 * @param timeoutCallback
 	 * @param timeInterval
@@ -126,19 +569,17 @@ public class Endpoint extends Eventable {
 	public synchronized boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
 		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
-		}
 		msg.setTimeoutId(nextId);
+		InFlight request = new InFlight(System.currentTimeMillis(),timeInterval,timeoutCallback);
+		// in the table before sending, since the reply may arrive at any time after,
+		// and before the timeout can look for it there
+		synchronized(inFlight) {
+			request.timeout=Utils.getInstance().setTimeout(()->checkTimeout(nextId),
+					timeoutRemaining(request.sentAt,timeInterval));
+			inFlight.put(nextId,request);
+		}
 		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
+		if(!sent) cancelTimeout(nextId);
 		return sent;
 	}
 	
@@ -157,49 +598,422 @@ public class Endpoint extends Eventable {
 	}
 	
 	/**
-	 * Closes the endpoint, which closes the socket. Both the endpoint thread
-	 * and the timer thread may end up attempting to do this in the event that
-	 * they detect problems.
+	 * Send an event to the other endpoint without a timeout or a reply, for
+	 * frequent events where an occasional loss does not matter, like the
+	 * position of a cursor. The other endpoint emits it locally just like an
+	 * event sent with {@link #emit(String, Object...)}.
+	 * @param eventName
+	 * @param eventData
+	 * @return true if the event was sent, false if it was not, including
+	 * when the event protocol is not running
+	 */
+	public boolean emitUnreliable(String eventName, String eventData) {
+		Protocol protocol = getProtocol(EventProtocol.protocolName);
+		if(protocol==null) return false;
+		return ((EventProtocol)protocol).sendUnreliableEvent(eventName,eventData);
+	}
+	
+	/**
+	 * Measure a round trip, from sending a message to receiving its reply
+	 * or acknowledgement. Replies to messages sent with
+	 * {@link #sendWithTimeout(Message, ICallback, int)} are measured by the
+	 * endpoint itself, protocols that time their own messages add their
+	 * measurements with this.
+	 * @param rtt the round trip time in ms
 	 */
-	public synchronized void close() {
-		// we are stopping this endpoint, the send method will return false always now.
-		stopped=true;
-		/* 
-	    * Tell all of the protocols to stop - they may not be able to correctly complete
-		* their intended function however - and this should be flagged as an error
-		* if it is the case.
-		*/
-		Set<String> protocolNames;
-		synchronized(protocols) {
-			protocolNames = new HashSet<String>(protocols.keySet());
+	public void sampleRtt(long rtt) {
+		if(smoothedRtt<0) {
+			smoothedRtt=rtt;
+			rttVariance=rtt/2.0;
+		} else {
+			rttVariance=0.75*rttVariance+0.25*Math.abs(smoothedRtt-rtt);
+			smoothedRtt=0.875*smoothedRtt+0.125*rtt;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the smoothed round trip time to the other endpoint in ms, or
+	 * -1 if it has not been measured yet
+	 */
+	public long getSmoothedRtt() {
+		double srtt=smoothedRtt;
+		return srtt<0 ? -1 : Math.round(srtt);
+	}
+	
+	/**
+	 * 
+	 * @return the variation of the round trip time to the other endpoint in ms
+	 */
+	public long getRttVariance() {
+		return Math.round(rttVariance);
+	}
+	
+	/**
+	 * The time to wait for a reply from the other endpoint, which is the
+	 * smoothed round trip time plus four times its variation, between
+	 * {@link #minTimeout} and {@link #maxTimeout}.
+	 * @param defaultTimeout used until the round trip time has been measured
+	 * @return the timeout in ms
+	 */
+	public int getTimeout(int defaultTimeout) {
+		double srtt=smoothedRtt;
+		if(srtt<0) return defaultTimeout;
+		double timeout=srtt+Math.max(clockGranularity,4*rttVariance);
+		return (int)Math.min(maxTimeout,Math.max(minTimeout,timeout));
+	}
+	
+	/**
+	 * How much longer to wait for a reply to a message. Waiting stops once
+	 * the other endpoint has been silent for the given time interval, or the
+	 * timeout given by the round trip time if that is longer, so a slow
+	 * round trip can only make the wait longer. The other endpoint is not
+	 * silent while anything at all is read from it, even part of a large
+	 * frame, and the silence is only counted from when the message was
+	 * written: while frames are still queued behind a full socket buffer,
+	 * every write shows that the other endpoint is reading.
+	 * @param sentAt time in ms that the message was queued to be sent
+	 * @param timeInterval least time of silence to wait for the reply
+	 * @return the time in ms still to wait, 0 if the message has timed out
+	 */
+	public long timeoutRemaining(long sentAt, int timeInterval) {
+		long heardFrom=Math.max(Math.max(sentAt,lastReceived),lastCaughtUp);
+		if(outQueue.getQueuedBytes()>0) heardFrom=Math.max(heardFrom,lastWritten);
+		long giveUpAt=heardFrom+Math.max(timeInterval,getTimeout(timeInterval));
+		return Math.max(0,giveUpAt-System.currentTimeMillis());
+	}
+	
+	/**
+	 * 
+	 * @return the number of messages sent that are waiting for a reply
+	 */
+	public int getInFlightCount() {
+		synchronized(inFlight) {
+			return inFlight.size();
+		}
+	}
+	
+	/**
+	 * Set how the endpoint copes with the other endpoint not reading as
+	 * fast as messages are sent to it. By default senders block when more
+	 * than {@link #defaultHighWatermark} bytes are queued.
+	 * @param lowWatermark bytes queued at which the endpoint is no longer saturated
+	 * @param highWatermark bytes queued at which the endpoint becomes saturated
+	 * @param policy what to do while saturated
+	 */
+	public void setBackpressure(long lowWatermark, long highWatermark,
+			BackpressurePolicy policy) {
+		outQueue.setBackpressure(lowWatermark,highWatermark,policy);
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Let queued events with the given name be dropped in favour of a newer
+	 * one with the same key, while the endpoint is saturated and its policy
+	 * is {@link BackpressurePolicy#DROP_SUPERSEDED}. This suits events that
+	 * carry a complete state, e.g. a snapshot of a board, so that only the
+	 * latest one matters. Events with different names that have the same key
+	 * supersede each other too. The timeout of a dropped event is cancelled.
+	 * @param eventName
+	 * @param keyOf gives the key of the event from its data
+	 */
+	public void supersedeEvent(String eventName, Function<String,String> keyOf) {
+		droppableEvents.remove(eventName);
+		supersedableEvents.put(eventName,keyOf);
+	}
+	
+	/**
+	 * Let queued events with the given name be dropped in favour of a newer
+	 * event with the same key that supersedes them, see
+	 * {@link #supersedeEvent(String, Function)}, without them superseding
+	 * anything themselves. This suits events that carry a change to a state,
+	 * e.g. to a board, which are all needed unless a snapshot of the state
+	 * replaces them.
+	 * @param eventName
+	 * @param keyOf gives the key of the event from its data
+	 */
+	public void dropEvent(String eventName, Function<String,String> keyOf) {
+		droppableEvents.add(eventName);
+		supersedableEvents.put(eventName,keyOf);
+	}
+	
+	/**
+	 * 
+	 * @param msg
+	 * @return true if the message drops the queued messages with the same
+	 * key, see {@link #supersedeKey(Message)}
+	 */
+	public boolean supersedes(Message msg) {
+		return msg instanceof EventRequest
+				&& !droppableEvents.contains(((EventRequest)msg).getEventName())
+				&& supersedeKey(msg)!=null;
+	}
+	
+	/**
+	 * 
+	 * @return true if the high watermark of the queued bytes has been
+	 * reached, and the low watermark not yet
+	 * @see {@link #setBackpressure(long, long, BackpressurePolicy)}
+	 */
+	public boolean isSaturated() {
+		return outQueue.isSaturated();
+	}
+	
+	/**
+	 * 
+	 * @return what the endpoint does while it is saturated
+	 */
+	public BackpressurePolicy getBackpressurePolicy() {
+		return outQueue.getPolicy();
+	}
+	
+	/**
+	 * Whether the current thread can wait for the other endpoint to catch
+	 * up. The threads that read from or write to the channel can not, since
+	 * the other endpoint can only be heard from through them, and neither
+	 * can the timer thread.
+	 * @return true if the current thread can wait
+	 */
+	public boolean canWait() {
+		Thread current=Thread.currentThread();
+		return current!=this && current!=writer && !SelectorPool.isSelectorThread()
+				&& !Utils.getInstance().isTimerThread();
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @return true if events with the name supersede each other, see
+	 * {@link #supersedeEvent(String, Function)}, rather than only being
+	 * dropped, see {@link #dropEvent(String, Function)}
+	 */
+	public boolean isSupersedable(String eventName) {
+		return supersedableEvents.containsKey(eventName) && !droppableEvents.contains(eventName);
+	}
+	
+	/**
+	 * 
+	 * @return the number of bytes queued to be written
+	 */
+	public long getQueuedBytes() {
+		return outQueue.getQueuedBytes();
+	}
+	
+	/**
+	 * 
+	 * @return the number of queued messages that were dropped because they
+	 * were superseded
+	 */
+	public long getDroppedMessages() {
+		return outQueue.getDroppedFrames();
+	}
+	
+	/**
+	 * 
+	 * @return total size of the sent messages that were compressed, before
+	 * compression
+	 */
+	public long getUncompressedBytesSent() {
+		return codec.getUncompressedBytesOut();
+	}
+	
+	/**
+	 * 
+	 * @return total size of the sent messages that were compressed, after
+	 * compression
+	 */
+	public long getCompressedBytesSent() {
+		return codec.getCompressedBytesOut();
+	}
+	
+	/**
+	 * 
+	 * @return the time in ms that anything was last received from the
+	 * other endpoint
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	/**
+	 * 
+	 * @return the time in ms that anything was last sent to the other endpoint
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+	
+	/**
+	 * 
+	 * @return the comma separated capabilities this endpoint can use, to
+	 * offer to the other endpoint
+	 */
+	public String getSupportedCapabilities() {
+		return String.join(",",supportedCapabilities);
+	}
+	
+	/**
+	 * Accept the capabilities offered by the other endpoint that this endpoint
+	 * supports as well. The other endpoint must be told which have been accepted.
+	 * @param offered comma separated capabilities
+	 * @return the comma separated capabilities that were accepted
+	 */
+	public String acceptCapabilities(String offered) {
+		useCapabilities(offered);
+		return String.join(",",capabilities);
+	}
+	
+	/**
+	 * Use the capabilities that the other endpoint has accepted. Only those
+	 * that this endpoint supports are used.
+	 * @param accepted comma separated capabilities
+	 */
+	public void useCapabilities(String accepted) {
+		Set<String> agreed = new HashSet<>();
+		for(String capability : accepted.split(",")) {
+			if(supportedCapabilities.contains(capability)) agreed.add(capability);
+		}
+		if(!agreed.contains(frame32Capability)) {
+			agreed.remove(binaryCapability);
+			agreed.remove(deflateCapability);
+			agreed.remove(chunkCapability);
+		}
+		if(!agreed.contains(binaryCapability)) agreed.remove(eventNamesCapability);
+		capabilities = Collections.unmodifiableSet(agreed);
+		if(hasCapability(frame32Capability)) codec.expectUpgrade();
+		if(hasCapability(eventNamesCapability)) codec.expectEventNames();
+	}
+	
+	/**
+	 * 
+	 * @param capability
+	 * @return true if the capability has been agreed with the other endpoint
+	 */
+	public boolean hasCapability(String capability) {
+		return capabilities.contains(capability);
+	}
+	
+	/**
+	 * Switch to the formats agreed with the other endpoint for everything
+	 * sent from now on. Both endpoints must upgrade once the capabilities
+	 * have been agreed. Control traffic is sent ahead of bulk traffic from
+	 * then on, see {@link #isControl(Message)}.
+	 * @return true if the upgrade was sent, false otherwise
+	 */
+	public synchronized boolean upgrade() {
+		if(stopped) return false;
+		if(!hasCapability(frame32Capability)) {
+			prioritised=true;
+			return false;
+		}
+		try {
+			write(new OutboundQueue.Frame(new ByteBuffer[] {codec.upgradeOut()},null,false,0,true));
+			if(hasCapability(binaryCapability)) codec.useBinary();
+			if(hasCapability(deflateCapability)) codec.useCompression();
+			if(hasCapability(eventNamesCapability)) codec.useEventNames();
+			if(hasCapability(chunkCapability)) codec.useChunks();
+			prioritised=true;
+		} catch (IOException e) {
+			manager.endpointDisconnectedAbruptly(this);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Closes the endpoint gracefully, which closes the socket once what has
+	 * been queued, like replies to the other endpoint about the closing, has
+	 * been written or {@link #closeFlushTimeout} has passed. The timer,
+	 * selector and dispatcher threads never wait for this, they close the
+	 * endpoint as {@link #closeNow()} does. Both the endpoint thread and the
+	 * timer thread may end up attempting to do this in the event that they
+	 * detect problems, only the first attempt closes the endpoint.
+	 */
+	public void close() {
+		close(true);
+	}
+	
+	/**
+	 * Closes the endpoint without writing anything more, for when the other
+	 * endpoint has timed out or the connection has failed, so that nothing
+	 * waits for a peer that is not reading.
+	 */
+	public void closeNow() {
+		close(false);
+	}
+	
+	/**
+	 * @param flush whether to wait for what has been queued to be written
+	 */
+	private void close(boolean flush) {
+		synchronized(this) {
+			if(closing) return;
+			closing=true;
+			// we are stopping this endpoint, the send method will return false always now.
+			stopped=true;
+			/* 
+		    * Tell all of the protocols to stop - they may not be able to correctly complete
+			* their intended function however - and this should be flagged as an error
+			* if it is the case.
+			*/
+			for(Protocol protocol : protocols) {
+				if(protocol!=null) stopProtocol(protocol.getProtocolName());
+			}
 		}
-		protocolNames.forEach(this::stopProtocol);
 		
 		/*
-		 *  The endpoint thread itself will not process any more messages if we
-		 *  interrupt it.
-		 *  Note that it currently may be processing a message, indeed it may
-		 *  be this thread and interrupting itself.
+		 * Give the writer a chance to write what has been queued, without
+		 * holding the lock, so that senders and the writer are not held up.
+		 * The selector thread can not wait for itself, so it just makes a
+		 * last attempt. Nothing more can be queued, since send returns false.
 		 */
-		interrupt();
+		if(flush) {
+			try {
+				if(Thread.currentThread()==writer) {
+					if(key!=null && key.isValid()) flush();
+				} else if(writer!=null && !Utils.getInstance().isTimerThread()
+						&& !SelectorPool.isSelectorThread() && !EventDispatcher.isLaneThread()) {
+					if(!outQueue.awaitEmpty(closeFlushTimeout)) {
+						log.warning("closing with unsent messages to: "+getOtherEndpointId());
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				log.warning("unsent messages when closing: "+e.getMessage());
+			}
+		}
 		
-		/*
-		 * At this point there may be exactly one _currently executing_ timer
-		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
-		 * be pending timer thread callbacks that will want to use this endpoint
-		 * (which wont run since protocol stopped has been set in the protocols).
-		 * The endpoint is at this point just "closing", not closed.
-		 */
+		synchronized(this) {
+			/*
+			 *  The endpoint thread itself will not process any more messages if we
+			 *  interrupt it.
+			 *  Note that it currently may be processing a message, indeed it may
+			 *  be this thread and interrupting itself.
+			 */
+			interrupt();
+			
+			/*
+			 * At this point there may be exactly one _currently executing_ timer
+			 * thread callback, plus there may be pending timer thread callbacks
+			 * that will want to use this endpoint (which wont run since protocol
+			 * stopped has been set in the protocols, and send returns false).
+			 * The endpoint is at this point just "closing", not closed.
+			 */
+			
+			outQueue.close();
+			// senders waiting for room find the queue closed
+			notifyAll();
+		}
 		
-		try {
-			if(out!=null) out.close();
-			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+		// no replies will arrive now
+		synchronized(inFlight) {
+			inFlight.values().forEach((request)->request.timeout.cancel());
+			inFlight.clear();
 		}
+		
 		try {
-			socket.close();
+			channel.close();
 		} catch (IOException e) {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
@@ -211,78 +1025,132 @@ public class Endpoint extends Eventable {
 	 */
 	@Override
 	public void run() {
+		writer = new Thread(this::writeFrames,"EndpointWriter");
+		writer.setDaemon(true);
+		writer.start();
+		started();
+		try {
+			while(!isInterrupted()) {
+				readFrames();
+			}
+		} catch (IOException e) {
+			// if we closed the channel ourselves then nothing is abrupt
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		}
+		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Start the endpoint on a selector instead of as a thread. Called
+	 * by the selector thread that will read the channel from now on.
+	 * @param selector to register the channel with
+	 */
+	void startOn(Selector selector) {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
-		} catch (IOException e){
+			channel.configureBlocking(false);
+			key = channel.register(selector,SelectionKey.OP_READ,this);
+			writer = Thread.currentThread();
+		} catch (IOException e) {
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
-		stopped=false; // allow use of the out stream
+		started();
+	}
+	
+	/**
+	 * Called by the selector thread when the channel has data to read.
+	 */
+	void channelReadable() {
+		try {
+			readFrames();
+		} catch (IOException e) {
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+	
+	/**
+	 * Called by the selector thread when the channel can be written to.
+	 */
+	void channelWritable() {
+		try {
+			flush();
+		} catch (IOException e) {
+			writeFailed();
+		}
+	}
+	
+	/**
+	 * The channel is ready to use.
+	 */
+	private void started() {
+		lastReceived=lastSent=lastWritten=lastCaughtUp=System.currentTimeMillis();
+		stopped=false; // allow use of the channel
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
-		while(!isInterrupted()) {
+	}
+	
+	/**
+	 * Read whatever is available from the channel, then process all of the
+	 * complete frames that have been read so far.
+	 * @throws IOException if the channel has reached end-of-stream or a
+	 * frame could not be decoded
+	 */
+	private void readFrames() throws IOException {
+		int read=codec.readFrom(channel);
+		if(read<0) throw new EOFException();
+		// any data at all, even part of a frame, shows that the other endpoint is alive
+		if(read>0) lastReceived=System.currentTimeMillis();
+		while(!stopped) {
+			Message msg;
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				if (msg.getProtocolName().equals(EventProtocol.protocolName) && msg.getType()== Message.Type.Request) {
-					EventRequest eventRequest = (EventRequest)msg;
-					log.info("received EventRequest " + eventRequest.getEventName()+ " from " + getOtherEndpointId());
-				} else {
-					log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				}
-				switch(msg.getType()) {
-				case Request:
-					assert protocol != null;
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					assert protocol != null;
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
-				}
-			} catch (IOException e) {
-				manager.endpointDisconnectedAbruptly(this);
-				// we can't continue here
-				break;
+				msg=codec.nextMessage();
 			} catch (InvalidMessage e) {
 				manager.endpointSentInvalidMessage(this);
 				// up to the client what to do
+				continue;
 			}
+			if(msg==null) break;
+			receive(msg);
 		}
-		try {
-			in.close();
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+	}
+	
+	/**
+	 * Route a received message to its protocol.
+	 * @param msg the received message
+	 */
+	private void receive(Message msg) {
+		// cancel any related time out
+		if(msg.getType()==Message.Type.Reply) {
+			InFlight request=cancelTimeout(msg.getTimeoutId());
+			if(request!=null) sampleRtt(System.currentTimeMillis()-request.sentAt);
+		}
+		// find the protocol
+		int protocolId=msg.getProtocolId();
+		Protocol[] current=protocols;
+		Protocol protocol=protocolId<current.length ? current[protocolId] : null;
+		if(protocol==null) {
+			protocol=ProtocolRegistry.newProtocol(protocolId,this,manager);
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.getName());
+				return;
+			}
+		}
+		if (msg instanceof EventRequest) {
+			EventRequest eventRequest = (EventRequest)msg;
+			log.info("received EventRequest " + eventRequest.getEventName()+ " from " + getOtherEndpointId());
+		} else {
+			log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		}
+		switch(msg.getType()) {
+		case Request:
+			assert protocol != null;
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			assert protocol != null;
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
 		}
-		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
 	/**
@@ -294,11 +1162,14 @@ public class Endpoint extends Eventable {
 	 * running on this endpoint
 	 */
 	public void handleProtocol(Protocol protocol) throws ProtocolAlreadyRunning {
-		synchronized(protocols) {
-			if(protocols.containsKey(protocol.getProtocolName())){
+		int protocolId=ProtocolRegistry.getProtocolId(protocol.getProtocolName());
+		synchronized(protocolsLock) {
+			if(protocolId<protocols.length && protocols[protocolId]!=null){
 				throw new ProtocolAlreadyRunning();
 			} else {
-				protocols.put(protocol.getProtocolName(),protocol);
+				Protocol[] handled=Arrays.copyOf(protocols,Math.max(protocols.length,protocolId+1));
+				handled[protocolId]=protocol;
+				protocols=handled;
 				log.info("now handling protocol: "+protocol.getProtocolName());
 			}
 		}
@@ -311,13 +1182,16 @@ public class Endpoint extends Eventable {
 	 * @param protocolName the protocol name to stop
 	 */
 	public void stopProtocol(String protocolName) {
-		synchronized(protocols) {
-			if(!protocols.containsKey(protocolName)) {
+		int protocolId=ProtocolRegistry.getProtocolId(protocolName);
+		synchronized(protocolsLock) {
+			if(protocolId>=protocols.length || protocols[protocolId]==null) {
 				log.warning("no instance of protocol to stop: "+protocolName);
 				return;
 			}
-			protocols.get(protocolName).stopProtocol();
-			protocols.remove(protocolName);
+			protocols[protocolId].stopProtocol();
+			Protocol[] handled=protocols.clone();
+			handled[protocolId]=null;
+			protocols=handled;
 		}
 	}
 	
@@ -326,9 +1200,10 @@ public class Endpoint extends Eventable {
 	 * @return the id of the other endpoint
 	 */
 	public String getOtherEndpointId() {
-		return socket.getInetAddress().toString()+":"+socket.getPort();
+		return otherEndpointId;
 	}
 
+
 	/**
 	 * 
 	 * @param string protocol name
@@ -336,8 +1211,8 @@ public class Endpoint extends Eventable {
 	 * otherwise
 	 */
 	public Protocol getProtocol(String string) {
-		synchronized(protocols) {
-			return protocols.get(string);
-		}
+		int protocolId=ProtocolRegistry.getProtocolId(string);
+		Protocol[] current=protocols;
+		return protocolId<current.length ? current[protocolId] : null;
 	}
 }
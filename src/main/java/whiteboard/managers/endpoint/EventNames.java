@@ -0,0 +1,81 @@
+package whiteboard.managers.endpoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The event names of one direction of a connection, each given a small id
+ * the first time it is sent so that it can be sent as that id from then on
+ * (see {@link whiteboard.managers.endpoint.Endpoint#eventNamesCapability}).
+ * Ids are given out in order from 0, and the other endpoint learns the name
+ * of an id from the first message that uses it, which carries the name as
+ * well. Once {@link #maxNames} names have ids, further names are always
+ * sent in full.
+ * <br/>
+ * Names received are interned, so that looking up their callbacks finds an
+ * identical key.
+ *
+ * @see {@link whiteboard.managers.endpoint.BinaryCodec}
+ */
+class EventNames {
+
+	/**
+	 * Most names that are given ids on a connection.
+	 */
+	static final int maxNames = 1024;
+
+	/**
+	 * Ids by name, only used for names being sent.
+	 */
+	private final Map<String,Integer> ids = new HashMap<>();
+
+	/**
+	 * Names by id.
+	 */
+	private final ArrayList<String> names = new ArrayList<>();
+
+	/**
+	 *
+	 * @param name
+	 * @return the id of the name, or -1 if it has none
+	 */
+	int idOf(String name) {
+		Integer id = ids.get(name);
+		return id!=null ? id : -1;
+	}
+
+	/**
+	 * Give a name being sent an id.
+	 * @param name that has no id
+	 * @return the id of the name, or -1 if no more names can be given ids
+	 */
+	int add(String name) {
+		if(names.size()>=maxNames) return -1;
+		int id = names.size();
+		names.add(name);
+		ids.put(name,id);
+		return id;
+	}
+
+	/**
+	 * Learn the name of the next id, from a message received.
+	 * @param id
+	 * @param name
+	 * @return false if the id is not the next one
+	 */
+	boolean define(int id, String name) {
+		if(id!=names.size() || id>=maxNames) return false;
+		names.add(name.intern());
+		return true;
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return the name of the id, or null if it has none
+	 */
+	String nameOf(long id) {
+		return id>=0 && id<names.size() ? names.get((int)id) : null;
+	}
+}
@@ -0,0 +1,674 @@
+package whiteboard.managers.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import whiteboard.protocols.InvalidMessage;
+import whiteboard.protocols.Message;
+import whiteboard.protocols.event.EventRequest;
+
+/**
+ * Turns the byte stream of a socket channel into messages and messages into
+ * frames of bytes for the socket channel. There are two frame formats:
+ * <ul>
+ * <li>legacy: a 2 byte length followed by the modified UTF-8 encoding of the
+ * JSON message, i.e. exactly what {@link java.io.DataOutputStream#writeUTF(String)}
+ * writes, which limits a message to 65535 bytes</li>
+ * <li>framed: a 4 byte length, a flags byte and then the message, where the
+ * length counts the flags byte and the message. The message is the UTF-8
+ * encoding of the JSON message, or its binary encoding (see
+ * {@link whiteboard.managers.endpoint.BinaryCodec}) if {@link #binaryFlag}
+ * is set. If {@link #deflateFlag} is set the message is compressed, and is
+ * preceded by its 4 byte uncompressed length.</li>
+ * </ul>
+ * A framed frame that is larger than {@link #chunkSize} may be sent as a
+ * number of chunk frames instead (see
+ * {@link whiteboard.managers.endpoint.Endpoint#chunkCapability}), each with
+ * {@link #chunkFlag} set and holding the next part of the flags and message
+ * of the whole frame. The last chunk has {@link #lastChunkFlag} set as well.
+ * Only one frame at a time is sent in chunks, but other frames may be sent
+ * between its chunks.
+ * Every connection starts out using the legacy format in both directions, so
+ * that an endpoint is able to talk to a peer that uses plain data streams.
+ * Once both ends have agreed to use the framed format (see
+ * {@link whiteboard.managers.endpoint.Endpoint#frame32Capability}) each end
+ * sends an empty legacy frame, the upgrade marker, and then switches to the
+ * framed format for everything it sends after it. An empty legacy frame is
+ * never a valid message so the marker can not be confused with one.
+ * <br/>
+ * Bytes read from the channel are accumulated in a single buffer that is
+ * reused for the life of the endpoint, and is only grown when a frame does
+ * not fit into it. Framed messages are decoded straight out of that buffer,
+ * and are encoded straight into the buffer that is written to the channel.
+ * Only messages of at least {@link #compressionThreshold} bytes are
+ * compressed, and only if that makes them smaller, so that keepalives and
+ * replies are never compressed.
+ * The codec is not thread safe, reading must only be done by one thread at a
+ * time and so must encoding.
+ *
+ * @see {@link whiteboard.managers.endpoint.Endpoint}
+ */
+class FrameCodec {
+
+	/**
+	 * Initial size of the inbound buffer.
+	 */
+	private static final int initialBufferSize = 16*1024;
+
+	/**
+	 * Largest JSON buffer kept for reuse, in chars.
+	 */
+	private static final int maxRetainedJson = 1024*1024;
+
+	/**
+	 * Largest framed frame that will be accepted from the other endpoint.
+	 */
+	private static final int maxFrameSize = 64*1024*1024;
+
+	/**
+	 * Size of the framed header, the length and the flags.
+	 */
+	private static final int headerSize = 5;
+	
+	/**
+	 * Flag of a frame that holds a binary encoded message.
+	 */
+	static final byte binaryFlag = 0x01;
+	
+	/**
+	 * Flag of a frame that holds a compressed message.
+	 */
+	static final byte deflateFlag = 0x02;
+	
+	/**
+	 * Flag of a frame that holds a chunk of a larger frame.
+	 */
+	static final byte chunkFlag = 0x04;
+	
+	/**
+	 * Flag of the frame that holds the last chunk of a larger frame.
+	 */
+	static final byte lastChunkFlag = 0x08;
+	
+	/**
+	 * Largest frame that is sent whole once chunks are in use, not counting
+	 * its length, and the most that a chunk holds of a larger frame.
+	 */
+	static final int chunkSize = 64*1024;
+	
+	/**
+	 * Smallest message that is compressed, in bytes.
+	 */
+	private static final int compressionThreshold = 1024;
+
+	/**
+	 * Bytes read from the channel. The unconsumed bytes are those from
+	 * {@link #start} up to the buffer's position.
+	 */
+	private ByteBuffer inBuffer;
+
+	/**
+	 * Start of the unconsumed bytes in the inbound buffer.
+	 */
+	private int start=0;
+
+	/**
+	 * Whether the other endpoint has agreed to switch to the framed format,
+	 * in which case the next upgrade marker switches the inbound format.
+	 */
+	private volatile boolean upgradeExpected=false;
+
+	/**
+	 * Whether frames being read are in the framed format.
+	 */
+	private boolean framedIn=false;
+
+	/**
+	 * Whether frames being written are in the framed format.
+	 */
+	private volatile boolean framedOut=false;
+	
+	/**
+	 * Whether messages being written are binary encoded, where possible.
+	 */
+	private volatile boolean binaryOut=false;
+	
+	/**
+	 * Whether messages being written are compressed, where worthwhile.
+	 */
+	private volatile boolean compressOut=false;
+	
+	/**
+	 * Whether large frames being written may be sent in chunks.
+	 */
+	private volatile boolean chunksOut=false;
+
+	/**
+	 * Event names of the messages read and written, null if names are
+	 * not sent as ids in that direction.
+	 */
+	private volatile EventNames namesIn=null;
+	private volatile EventNames namesOut=null;
+	
+	/**
+	 * Created when first needed, then reused.
+	 */
+	private Deflater deflater=null;
+	
+	private Inflater inflater=null;
+	
+	/**
+	 * Reused to compress messages into.
+	 */
+	private byte[] deflated=null;
+	
+	/**
+	 * Reused to decompress messages into.
+	 */
+	private ByteBuffer inflated=null;
+	
+	/**
+	 * The chunks of a frame read so far, created when first needed, then
+	 * reused.
+	 */
+	private ByteBuffer chunks=null;
+	
+	/**
+	 * Reused to write messages as JSON into, replaced if a message made
+	 * it much larger than usual.
+	 */
+	private StringBuilder jsonOut=new StringBuilder(initialBufferSize);
+	
+	/**
+	 * Total size of the written messages that were compressed, before
+	 * compression.
+	 */
+	private volatile long uncompressedBytesOut=0;
+	
+	/**
+	 * Total size of the written messages that were compressed, after
+	 * compression.
+	 */
+	private volatile long compressedBytesOut=0;
+
+	public FrameCodec() {
+		inBuffer=ByteBuffer.allocate(initialBufferSize);
+	}
+
+	/**
+	 * The other endpoint has agreed to use the framed format, it will send
+	 * an upgrade marker before its first framed frame.
+	 */
+	public void expectUpgrade() {
+		upgradeExpected=true;
+	}
+
+	/**
+	 * Switch the outbound format to framed.
+	 * @return the upgrade marker, which must be written to the channel
+	 * before any frame that is encoded after this call
+	 */
+	public ByteBuffer upgradeOut() {
+		framedOut=true;
+		return ByteBuffer.wrap(new byte[2]);
+	}
+
+	/**
+	 * Binary encode the messages written from now on, where they have a
+	 * binary encoding. Only has an effect once the outbound format is framed.
+	 */
+	public void useBinary() {
+		binaryOut=true;
+	}
+	
+	/**
+	 * Compress the messages written from now on, where worthwhile. Only has
+	 * an effect once the outbound format is framed.
+	 */
+	public void useCompression() {
+		compressOut=true;
+	}
+	
+	/**
+	 * Let large frames be sent in chunks from now on, see
+	 * {@link #chunk(ByteBuffer)}. Only has an effect once the outbound
+	 * format is framed.
+	 */
+	public void useChunks() {
+		chunksOut=true;
+	}
+	
+	/**
+	 * The other endpoint has agreed to send event names as ids, once its
+	 * messages are binary encoded.
+	 */
+	public void expectEventNames() {
+		namesIn=new EventNames();
+	}
+	
+	/**
+	 * Send the names of events written from now on as ids, where possible.
+	 * Only has an effect once messages are binary encoded.
+	 */
+	public void useEventNames() {
+		namesOut=new EventNames();
+	}
+	
+	/**
+	 * 
+	 * @return total size of the written messages that were compressed,
+	 * before compression
+	 */
+	public long getUncompressedBytesOut() {
+		return uncompressedBytesOut;
+	}
+	
+	/**
+	 * 
+	 * @return total size of the written messages that were compressed,
+	 * after compression
+	 */
+	public long getCompressedBytesOut() {
+		return compressedBytesOut;
+	}
+	
+	/**
+	 * Read whatever is available from the channel into the inbound buffer.
+	 * @param channel to read from
+	 * @return the number of bytes read, or -1 if the channel has reached
+	 * end-of-stream
+	 * @throws IOException
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		if(!inBuffer.hasRemaining()) compact();
+		return channel.read(inBuffer);
+	}
+
+	/**
+	 * Take the next complete frame from the inbound buffer. The frame is
+	 * consumed even if the message in it is not valid.
+	 * @return the message in the frame or null if there is no complete frame
+	 * available yet
+	 * @throws IOException if the frame can not be decoded
+	 * @throws InvalidMessage if the message in the frame is not valid
+	 */
+	public Message nextMessage() throws IOException, InvalidMessage {
+		while(!framedIn) {
+			int available = inBuffer.position()-start;
+			if(available<2) {
+				compact();
+				return null;
+			}
+			int length = inBuffer.getShort(start) & 0xffff;
+			if(available<2+length) {
+				compact();
+				ensureCapacity(2+length);
+				return null;
+			}
+			if(length==0 && upgradeExpected) {
+				start+=2;
+				framedIn=true;
+				break;
+			}
+			String payload = DataInputStream.readUTF(new DataInputStream(
+					new ByteArrayInputStream(inBuffer.array(),start,2+length)));
+			start+=2+length;
+			return Message.toMessage(payload);
+		}
+		while(true) {
+			int available = inBuffer.position()-start;
+			if(available<headerSize) {
+				compact();
+				return null;
+			}
+			int length = inBuffer.getInt(start);
+			if(length<1 || length>maxFrameSize) {
+				throw new IOException("invalid frame length: "+length);
+			}
+			if(available<4+length) {
+				compact();
+				ensureCapacity(4+length);
+				return null;
+			}
+			byte flags = inBuffer.get(start+4);
+			int allowed = (flags & chunkFlag)!=0 ? chunkFlag|lastChunkFlag : binaryFlag|deflateFlag;
+			if((flags & ~allowed)!=0) {
+				throw new IOException("unsupported frame flags: "+flags);
+			}
+			int payloadStart = start+headerSize;
+			start+=4+length;
+			if((flags & chunkFlag)!=0) {
+				if(addChunk(payloadStart,length-1,(flags & lastChunkFlag)!=0)) {
+					return nextChunked();
+				}
+				continue;
+			}
+			if((flags & deflateFlag)!=0) {
+				return decode(flags,inflate(inBuffer,payloadStart,length-1));
+			}
+			// decode in place, then restore the buffer for further reading
+			int end = inBuffer.position();
+			inBuffer.limit(start).position(payloadStart);
+			try {
+				return decode(flags,inBuffer);
+			} finally {
+				inBuffer.limit(inBuffer.capacity()).position(end);
+			}
+		}
+	}
+	
+	/**
+	 * Add a chunk to the chunks of the frame read so far.
+	 * @param offset of the chunk in the inbound buffer
+	 * @param length of the chunk
+	 * @param last whether it is the last chunk of the frame
+	 * @return true if it was the last chunk
+	 * @throws IOException if the frame is too large
+	 */
+	private boolean addChunk(int offset, int length, boolean last) throws IOException {
+		if(chunks==null) chunks = ByteBuffer.allocate(Math.max(length,initialBufferSize));
+		if(chunks.position()+length>maxFrameSize) {
+			throw new IOException("invalid chunked frame");
+		}
+		if(chunks.remaining()<length) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(chunks.position()+length,chunks.capacity()*2));
+			chunks.flip();
+			bigger.put(chunks);
+			chunks=bigger;
+		}
+		chunks.put(inBuffer.array(),offset,length);
+		return last;
+	}
+	
+	/**
+	 * Decode the frame that all of the chunks read so far make up.
+	 * @return the message in the frame
+	 * @throws IOException if the frame can not be decoded
+	 * @throws InvalidMessage if the message in the frame is not valid
+	 */
+	private Message nextChunked() throws IOException, InvalidMessage {
+		try {
+			if(chunks.position()<2) {
+				throw new IOException("invalid chunked frame");
+			}
+			byte flags = chunks.get(0);
+			if((flags & ~(binaryFlag|deflateFlag))!=0) {
+				throw new IOException("unsupported frame flags: "+flags);
+			}
+			int length = chunks.position()-1;
+			if((flags & deflateFlag)!=0) {
+				return decode(flags,inflate(chunks,1,length));
+			}
+			chunks.flip().position(1);
+			return decode(flags,chunks);
+		} finally {
+			// the chunks of a large frame are not kept
+			if(chunks.capacity()>initialBufferSize) {
+				chunks=null;
+			} else {
+				chunks.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Decode an uncompressed message.
+	 * @param flags of the frame
+	 * @param payload heap buffer holding exactly the message
+	 * @return the message
+	 * @throws InvalidMessage
+	 */
+	private Message decode(byte flags, ByteBuffer payload) throws InvalidMessage {
+		if((flags & binaryFlag)!=0) {
+			return BinaryCodec.decode(payload,namesIn);
+		}
+		// parsed in place, the reader copies out what it leaves undecoded
+		int offset = payload.arrayOffset()+payload.position();
+		return Message.toMessage(payload.array(),offset,payload.remaining());
+	}
+	
+	/**
+	 * Decompress a message from the inbound buffer or the chunks of a frame.
+	 * @param buffer heap buffer holding the compressed message
+	 * @param offset of the compressed message, which starts with its
+	 * uncompressed length
+	 * @param length of the compressed message
+	 * @return a buffer holding exactly the uncompressed message, which is
+	 * only valid until the next call
+	 * @throws IOException if the message can not be decompressed
+	 */
+	private ByteBuffer inflate(ByteBuffer buffer, int offset, int length) throws IOException {
+		int rawLength = length<4 ? -1 : buffer.getInt(offset);
+		if(rawLength<1 || rawLength>maxFrameSize) {
+			throw new IOException("invalid compressed frame");
+		}
+		if(inflater==null) inflater = new Inflater();
+		if(inflated==null || inflated.capacity()<rawLength
+				|| inflated.capacity()>initialBufferSize && rawLength<=initialBufferSize) {
+			inflated = ByteBuffer.allocate(Math.max(rawLength,initialBufferSize));
+		}
+		inflater.setInput(buffer.array(),offset+4,length-4);
+		try {
+			int n=0;
+			while(n<rawLength && !inflater.finished()) {
+				int inflatedBytes = inflater.inflate(inflated.array(),n,rawLength-n);
+				if(inflatedBytes==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n+=inflatedBytes;
+			}
+			if(n!=rawLength || !inflater.finished()) {
+				throw new IOException("invalid compressed frame");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("invalid compressed frame: "+e.getMessage());
+		} finally {
+			inflater.reset();
+		}
+		inflated.clear().limit(rawLength);
+		return inflated;
+	}
+
+	/**
+	 * Encode a message as a frame ready to be written to the channel.
+	 * @param msg
+	 * @param droppable whether the frame may be dropped rather than written,
+	 * in which case it must not be the first to use the id of an event name
+	 * @return a buffer holding the frame, ready for reading
+	 * @throws IOException if the message can not be encoded, e.g. it is too
+	 * long for the legacy format
+	 */
+	public ByteBuffer encode(Message msg, boolean droppable) throws IOException {
+		int id = binaryOut && framedOut ? BinaryCodec.messageId(msg) : -1;
+		if(id>=0) {
+			long nameRef = 0;
+			EventNames names = namesOut;
+			if(names!=null && (id==BinaryCodec.eventId || id==BinaryCodec.windowedEventId)) {
+				String eventName = ((EventRequest)msg).getEventName();
+				int nameId = names.idOf(eventName);
+				if(nameId>=0) {
+					nameRef = (long)nameId<<1;
+				} else if(!droppable && (nameId=names.add(eventName))>=0) {
+					nameRef = (long)nameId<<1 | 1;
+				}
+				if(nameId>=0) id = BinaryCodec.namedEventId(id);
+			}
+			int length = BinaryCodec.encodedLength(id,msg,nameRef);
+			ByteBuffer frame = ByteBuffer.allocate(headerSize+length);
+			frame.putInt(1+length);
+			frame.put(binaryFlag);
+			BinaryCodec.encode(id,msg,nameRef,frame);
+			frame.flip();
+			return compress(frame);
+		}
+		if(!framedOut) {
+			String payload = msg.toJsonString();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length()+2);
+			new DataOutputStream(bytes).writeUTF(payload);
+			return ByteBuffer.wrap(bytes.toByteArray());
+		}
+		jsonOut.setLength(0);
+		msg.writeJson(jsonOut);
+		int length = utf8Length(jsonOut);
+		ByteBuffer frame = ByteBuffer.allocate(headerSize+length);
+		frame.putInt(1+length);
+		frame.put((byte)0);
+		putUtf8(jsonOut,frame);
+		frame.flip();
+		if(jsonOut.capacity()>maxRetainedJson) jsonOut = new StringBuilder(initialBufferSize);
+		return compress(frame);
+	}
+	
+	/**
+	 * Split a framed frame into chunks, if chunks are in use and the frame
+	 * is larger than {@link #chunkSize}, so that other frames can be
+	 * written between its chunks.
+	 * @param frame as given by {@link #encode(Message, boolean)}
+	 * @return the chunks in order, or just the given frame
+	 */
+	public ByteBuffer[] chunk(ByteBuffer frame) {
+		int length = frame.remaining()-4;
+		if(!chunksOut || !framedOut || length<=chunkSize) return new ByteBuffer[] {frame};
+		ByteBuffer[] chunked = new ByteBuffer[(length+chunkSize-1)/chunkSize];
+		int offset = frame.arrayOffset()+frame.position()+4;
+		for(int i=0;i<chunked.length;i++) {
+			int n = Math.min(chunkSize,length-i*chunkSize);
+			ByteBuffer chunk = ByteBuffer.allocate(headerSize+n);
+			chunk.putInt(1+n);
+			chunk.put(i==chunked.length-1 ? (byte)(chunkFlag|lastChunkFlag) : chunkFlag);
+			chunk.put(frame.array(),offset+i*chunkSize,n);
+			chunk.flip();
+			chunked[i]=chunk;
+		}
+		return chunked;
+	}
+	
+	/**
+	 * Compress a framed message, if compression is in use and worthwhile.
+	 * @param frame that is not compressed
+	 * @return the compressed frame, or the given frame
+	 */
+	private ByteBuffer compress(ByteBuffer frame) {
+		int length = frame.remaining()-headerSize;
+		if(!compressOut || length<compressionThreshold) return frame;
+		if(deflater==null) deflater = new Deflater(Deflater.BEST_SPEED);
+		if(deflated==null || deflated.length<length) {
+			deflated = new byte[Math.max(length,initialBufferSize)];
+		}
+		deflater.setInput(frame.array(),headerSize,length);
+		deflater.finish();
+		// give up as soon as the compressed message is no smaller
+		int n=0;
+		while(!deflater.finished() && n<length) {
+			n+=deflater.deflate(deflated,n,length-n);
+		}
+		boolean smaller = deflater.finished() && n+4<length;
+		deflater.reset();
+		if(!smaller) return frame;
+		ByteBuffer compressed = ByteBuffer.allocate(headerSize+4+n);
+		compressed.putInt(1+4+n);
+		compressed.put((byte)(frame.get(4)|deflateFlag));
+		compressed.putInt(length);
+		compressed.put(deflated,0,n);
+		compressed.flip();
+		uncompressedBytesOut+=length;
+		compressedBytesOut+=n+4;
+		return compressed;
+	}
+
+	/**
+	 * Move the unconsumed bytes to the front of the inbound buffer. If the
+	 * buffer grew for a large frame, which has been consumed, it shrinks
+	 * back to its initial size.
+	 */
+	private void compact() {
+		if(start==0) return;
+		int unconsumed = inBuffer.position()-start;
+		if(inBuffer.capacity()>initialBufferSize && unconsumed<=initialBufferSize) {
+			ByteBuffer smaller = ByteBuffer.allocate(initialBufferSize);
+			smaller.put(inBuffer.array(),start,unconsumed);
+			inBuffer=smaller;
+		} else {
+			inBuffer.flip();
+			inBuffer.position(start);
+			inBuffer.compact();
+		}
+		start=0;
+	}
+
+	/**
+	 * Make sure a frame of the given size fits in the inbound buffer.
+	 * Must be called after {@link #compact()}.
+	 * @param frameSize
+	 */
+	private void ensureCapacity(int frameSize) {
+		if(inBuffer.capacity()>=frameSize) return;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(frameSize,inBuffer.capacity()*2));
+		inBuffer.flip();
+		bigger.put(inBuffer);
+		inBuffer=bigger;
+	}
+
+	/**
+	 * @param s
+	 * @return the number of bytes in the UTF-8 encoding of the string
+	 */
+	static int utf8Length(CharSequence s) {
+		int n = s.length();
+		int length = n;
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c<0x80) continue;
+			if(c<0x800) {
+				length+=1;
+			} else if(Character.isHighSurrogate(c) && i+1<n
+					&& Character.isLowSurrogate(s.charAt(i+1))) {
+				length+=2; // 4 bytes for the pair of chars
+				i++;
+			} else {
+				length+=2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Write the UTF-8 encoding of the string into a heap buffer, which must
+	 * have {@link #utf8Length(CharSequence)} bytes remaining. An unpaired surrogate
+	 * is written as if it was a character on its own.
+	 * @param s
+	 * @param buffer
+	 */
+	static void putUtf8(CharSequence s, ByteBuffer buffer) {
+		byte[] a = buffer.array();
+		int p = buffer.arrayOffset()+buffer.position();
+		int n = s.length();
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c<0x80) {
+				a[p++]=(byte)c;
+			} else if(c<0x800) {
+				a[p++]=(byte)(0xc0|(c>>6));
+				a[p++]=(byte)(0x80|(c&0x3f));
+			} else if(Character.isHighSurrogate(c) && i+1<n
+					&& Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp = Character.toCodePoint(c,s.charAt(++i));
+				a[p++]=(byte)(0xf0|(cp>>18));
+				a[p++]=(byte)(0x80|((cp>>12)&0x3f));
+				a[p++]=(byte)(0x80|((cp>>6)&0x3f));
+				a[p++]=(byte)(0x80|(cp&0x3f));
+			} else {
+				a[p++]=(byte)(0xe0|(c>>12));
+				a[p++]=(byte)(0x80|((c>>6)&0x3f));
+				a[p++]=(byte)(0x80|(c&0x3f));
+			}
+		}
+		buffer.position(p-buffer.arrayOffset());
+	}
+}
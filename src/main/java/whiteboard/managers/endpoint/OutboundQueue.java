@@ -0,0 +1,433 @@
+package whiteboard.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Frames waiting to be written to the channel of an endpoint. Any number of
+ * threads may add frames, while only one writer at a time takes them. The
+ * writer takes many of the frames that are queued at once, so that they can
+ * be written to the channel with a single gathered write.
+ * <br/>
+ * Frames are either control or bulk traffic. Control frames are small, like
+ * keepalives and replies, and are written ahead of any bulk frames that are
+ * still queued. The writer takes at most {@link #bulkPerBatch} bytes of bulk
+ * frames at once, so a control frame only ever waits for the batch being
+ * written. A large bulk frame is queued as chunks (see
+ * {@link whiteboard.managers.endpoint.FrameCodec#chunk(ByteBuffer)}), and a
+ * control frame may be written between any two of its chunks. A chunk or
+ * frame that is partly written is always finished first.
+ * <br/>
+ * The queue becomes saturated when adding a bulk frame would take the number
+ * of queued bytes over the high watermark, and stays saturated until the
+ * writer has drained it to the low watermark. What happens to bulk frames
+ * added while it is saturated depends on the {@link BackpressurePolicy},
+ * control frames are always added. An empty queue accepts a frame of any
+ * size. The queue also keeps track of whether the writer has been woken up,
+ * so that it is only woken up when the first frame is added after the writer
+ * emptied the queue.
+ *
+ * @see {@link whiteboard.managers.endpoint.Endpoint}
+ */
+class OutboundQueue {
+
+	/**
+	 * Most bytes of bulk frames that the writer takes at once.
+	 */
+	static final int bulkPerBatch = 64*1024;
+
+	/**
+	 * A frame and what is needed to decide whether it can be dropped.
+	 */
+	static class Frame {
+		/**
+		 * The frame, or its chunks in order.
+		 */
+		final ByteBuffer[] buffers;
+
+		/**
+		 * Frames with the same key supersede each other, null if the
+		 * frame can never be dropped.
+		 */
+		final String supersedeKey;
+
+		/**
+		 * Whether the frame drops the queued frames with the same key,
+		 * rather than only being dropped by them.
+		 */
+		final boolean supersedes;
+
+		/**
+		 * Timeout id of the message in the frame, 0 if there is none.
+		 */
+		final long timeoutId;
+
+		/**
+		 * Whether the frame is control traffic rather than bulk.
+		 */
+		final boolean control;
+
+		Frame(ByteBuffer[] buffers, String supersedeKey, boolean supersedes, long timeoutId,
+				boolean control) {
+			this.buffers=buffers;
+			this.supersedeKey=supersedeKey;
+			this.supersedes=supersedes;
+			this.timeoutId=timeoutId;
+			this.control=control;
+		}
+
+		/**
+		 * @return the number of bytes not yet written
+		 */
+		long remaining() {
+			long remaining=0;
+			for(ByteBuffer buffer : buffers) {
+				remaining+=buffer.remaining();
+			}
+			return remaining;
+		}
+
+		/**
+		 * @return true if the writer has started on the frame
+		 */
+		boolean started() {
+			return buffers[0].position()>0;
+		}
+
+		/**
+		 * @return true if all of the frame has been written
+		 */
+		boolean done() {
+			return !buffers[buffers.length-1].hasRemaining();
+		}
+	}
+
+	/**
+	 * The queued control frames, the head may have been partly written.
+	 */
+	private final ArrayDeque<Frame> controlFrames = new ArrayDeque<>();
+
+	/**
+	 * The queued bulk frames, the head may have been partly written.
+	 */
+	private final ArrayDeque<Frame> bulkFrames = new ArrayDeque<>();
+
+	/**
+	 * Reused to hand the queued frames to the writer.
+	 */
+	private ByteBuffer[] batch = new ByteBuffer[16];
+
+	/**
+	 * The number of buffers in the batch.
+	 */
+	private int batchSize=0;
+
+	/**
+	 * The number of bulk frames at the head of the queue that the writer
+	 * is currently writing, which can not be dropped.
+	 */
+	private int inBatch=0;
+
+	/**
+	 * A buffer that the writer has partly written, which must be finished
+	 * before anything else is written, null if there is none.
+	 */
+	private ByteBuffer partial=null;
+
+	/**
+	 * The number of bytes that are queued but not written.
+	 */
+	private long queuedBytes=0;
+
+	private long lowWatermark;
+
+	private long highWatermark;
+
+	private BackpressurePolicy policy;
+
+	/**
+	 * Whether the high watermark has been reached and the low watermark
+	 * not yet.
+	 */
+	private boolean saturated=false;
+
+	/**
+	 * The number of frames dropped because they were superseded.
+	 */
+	private long droppedFrames=0;
+
+	/**
+	 * Told the timeout id of each frame that is dropped.
+	 */
+	private final LongConsumer dropListener;
+
+	/**
+	 * True from when the writer is woken up until it has emptied the queue.
+	 */
+	private boolean writing=false;
+
+	/**
+	 * No more frames can be added once the queue is closed.
+	 */
+	private boolean closed=false;
+
+	/**
+	 * @param lowWatermark bytes queued at which the queue is no longer saturated
+	 * @param highWatermark bytes queued at which the queue becomes saturated
+	 * @param policy what to do when saturated
+	 * @param dropListener told the timeout id of each frame that is dropped
+	 */
+	public OutboundQueue(long lowWatermark, long highWatermark, BackpressurePolicy policy,
+			LongConsumer dropListener) {
+		this.dropListener=dropListener;
+		setBackpressure(lowWatermark,highWatermark,policy);
+	}
+
+	/**
+	 * @param lowWatermark bytes queued at which the queue is no longer saturated
+	 * @param highWatermark bytes queued at which the queue becomes saturated
+	 * @param policy what to do when saturated
+	 */
+	public synchronized void setBackpressure(long lowWatermark, long highWatermark,
+			BackpressurePolicy policy) {
+		this.lowWatermark=Math.min(lowWatermark,highWatermark);
+		this.highWatermark=highWatermark;
+		this.policy=policy;
+		if(saturated && queuedBytes<=this.lowWatermark) {
+			saturated=false;
+		}
+	}
+
+	/**
+	 * Add a frame to the queue, applying the backpressure policy if it is
+	 * a bulk frame and the queue is saturated. The frame is added even if
+	 * the policy is to block, the sender then waits for
+	 * {@link #mustWait()} to be false, without holding any lock that
+	 * senders of control frames need.
+	 * @param frame
+	 * @return true if the writer needs to be woken up
+	 * @throws ClosedChannelException if the queue has been closed
+	 * @throws IOException if the policy is to disconnect and the queue is saturated
+	 */
+	public synchronized boolean add(Frame frame) throws IOException {
+		if(closed) throw new ClosedChannelException();
+		long size = frame.remaining();
+		if(frame.control) {
+			controlFrames.add(frame);
+		} else {
+			if(!isEmpty() && queuedBytes+size>highWatermark) {
+				saturated=true;
+			}
+			if(saturated) {
+				switch(policy) {
+				case BLOCK:
+					break;
+				case DROP_SUPERSEDED:
+					if(frame.supersedes) dropSuperseded(frame.supersedeKey);
+					break;
+				case DISCONNECT:
+					close();
+					throw new IOException("more than "+highWatermark+" bytes queued");
+				}
+			}
+			bulkFrames.add(frame);
+		}
+		queuedBytes+=size;
+		if(writing) return false;
+		writing=true;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Whether a sender that has just added a bulk frame must wait before
+	 * adding more, because the queue is saturated and the policy is to block.
+	 * @return true if the sender must wait
+	 * @throws ClosedChannelException if the queue has been closed
+	 */
+	public synchronized boolean mustWait() throws ClosedChannelException {
+		if(closed) throw new ClosedChannelException();
+		return saturated && policy==BackpressurePolicy.BLOCK;
+	}
+
+	private boolean isEmpty() {
+		return controlFrames.isEmpty() && bulkFrames.isEmpty();
+	}
+
+	/**
+	 * Drop the queued bulk frames that have the given key, other than those
+	 * the writer has started on.
+	 * @param supersedeKey
+	 */
+	private void dropSuperseded(String supersedeKey) {
+		Iterator<Frame> it = bulkFrames.iterator();
+		for(int i=0;i<inBatch && it.hasNext();i++) {
+			it.next();
+		}
+		while(it.hasNext()) {
+			Frame queued = it.next();
+			if(supersedeKey.equals(queued.supersedeKey) && !queued.started()) {
+				it.remove();
+				queuedBytes-=queued.remaining();
+				droppedFrames++;
+				if(queued.timeoutId!=0) dropListener.accept(queued.timeoutId);
+			}
+		}
+		if(queuedBytes<=lowWatermark) {
+			saturated=false;
+		}
+	}
+
+	/**
+	 * Wait for frames to be added, for a writer that has nothing else to do.
+	 * @return false if the queue has been closed and is empty
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean await() throws InterruptedException {
+		while(!closed && isEmpty()) {
+			wait();
+		}
+		return !isEmpty();
+	}
+
+	/**
+	 * Take queued frames for writing: the rest of a buffer that is partly
+	 * written, then all of the control frames, then bulk frames up to
+	 * {@link #bulkPerBatch} bytes. They remain in the queue until
+	 * {@link #written(long)} finds that they have been written.
+	 * @return the number of buffers in {@link #getBatch()}
+	 */
+	public synchronized int batch() {
+		batchSize=0;
+		if(partial!=null) addToBatch(partial);
+		for(Frame frame : controlFrames) {
+			for(ByteBuffer buffer : frame.buffers) {
+				if(buffer.hasRemaining() && buffer!=partial) addToBatch(buffer);
+			}
+		}
+		long bulkBytes=0;
+		inBatch=0;
+		for(Frame frame : bulkFrames) {
+			if(bulkBytes>=bulkPerBatch) break;
+			inBatch++;
+			for(ByteBuffer buffer : frame.buffers) {
+				if(bulkBytes>=bulkPerBatch) break;
+				if(!buffer.hasRemaining()) continue;
+				if(buffer!=partial) addToBatch(buffer);
+				bulkBytes+=buffer.remaining();
+			}
+		}
+		return batchSize;
+	}
+
+	private void addToBatch(ByteBuffer buffer) {
+		if(batch.length==batchSize) {
+			batch = Arrays.copyOf(batch,batchSize*2);
+		}
+		batch[batchSize++]=buffer;
+	}
+
+	/**
+	 * @return the frames taken by the last call to {@link #batch()}
+	 */
+	public ByteBuffer[] getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Remove the frames that have been completely written.
+	 * @param bytes the number of bytes that were written
+	 * @return true if the queue is now empty, in which case the writer must
+	 * be woken up again by the next frame
+	 */
+	public synchronized boolean written(long bytes) {
+		queuedBytes-=bytes;
+		while(!controlFrames.isEmpty() && controlFrames.peek().done()) {
+			controlFrames.poll();
+		}
+		while(!bulkFrames.isEmpty() && bulkFrames.peek().done()) {
+			bulkFrames.poll();
+		}
+		// the buffers are written in the order of the batch, so at most one is partly written
+		partial=null;
+		for(int i=0;i<batchSize;i++) {
+			ByteBuffer buffer = batch[i];
+			if(buffer.hasRemaining()) {
+				if(buffer.position()>0) partial=buffer;
+				break;
+			}
+		}
+		inBatch=0;
+		if(saturated && queuedBytes<=lowWatermark) {
+			saturated=false;
+		}
+		notifyAll();
+		if(isEmpty()) {
+			writing=false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait until the writer has emptied the queue.
+	 * @param timeout in ms
+	 * @return true if the queue is empty
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitEmpty(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+timeout;
+		long remaining = timeout;
+		while(!closed && !isEmpty() && remaining>0) {
+			wait(remaining);
+			remaining = deadline-System.currentTimeMillis();
+		}
+		return isEmpty();
+	}
+
+	/**
+	 * Close the queue, discarding any queued frames and waking up anyone
+	 * that is waiting on it.
+	 */
+	public synchronized void close() {
+		closed=true;
+		controlFrames.clear();
+		bulkFrames.clear();
+		partial=null;
+		queuedBytes=0;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if the queue is saturated
+	 */
+	public synchronized boolean isSaturated() {
+		return saturated;
+	}
+
+	/**
+	 * @return what is done when the queue is saturated
+	 */
+	public synchronized BackpressurePolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of bytes that are queued but not written
+	 */
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return the number of frames dropped because they were superseded
+	 */
+	public synchronized long getDroppedFrames() {
+		return droppedFrames;
+	}
+}
@@ -0,0 +1,146 @@
+package whiteboard.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A small pool of selector threads that read the channels of any number of
+ * endpoints, as an alternative to a thread per connection. An endpoint that
+ * is registered with the pool must not also be started as a thread. Endpoints
+ * are spread over the selector threads round robin, and each endpoint stays
+ * with its selector thread until it is closed. Callbacks that result from
+ * received messages are run on the selector thread, exactly as they would be
+ * run on the endpoint thread otherwise.
+ *
+ * @see {@link whiteboard.managers.endpoint.Endpoint}
+ * @see {@link whiteboard.managers.ServerManager}
+ */
+public class SelectorPool {
+	private static Logger log = Logger.getLogger(SelectorPool.class.getName());
+
+	/**
+	 * The selector threads.
+	 */
+	private final SelectorThread[] selectorThreads;
+
+	/**
+	 * Used to pick the selector thread for the next endpoint.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Create and start the selector threads.
+	 * @param size the number of selector threads, at least 1
+	 * @throws IOException if a selector could not be opened
+	 */
+	public SelectorPool(int size) throws IOException {
+		selectorThreads = new SelectorThread[Math.max(1,size)];
+		for(int i=0;i<selectorThreads.length;i++) {
+			selectorThreads[i] = new SelectorThread(i);
+			selectorThreads[i].start();
+		}
+	}
+
+	/**
+	 * Hand an endpoint to one of the selector threads, which will start it.
+	 * @param endpoint that has not been started
+	 */
+	public void register(Endpoint endpoint) {
+		int i = Math.floorMod(next.getAndIncrement(),selectorThreads.length);
+		selectorThreads[i].register(endpoint);
+	}
+
+	/**
+	 * @return true if the current thread is a selector thread of any pool,
+	 * which must never wait
+	 */
+	static boolean isSelectorThread() {
+		return Thread.currentThread() instanceof SelectorThread;
+	}
+
+	/**
+	 * Stop all of the selector threads. Endpoints that are still registered
+	 * will no longer receive messages, so they should be closed first.
+	 */
+	public void shutDown() {
+		for(SelectorThread selectorThread : selectorThreads) {
+			selectorThread.shutDown();
+		}
+	}
+
+	/**
+	 * A thread that selects over the channels of its endpoints.
+	 */
+	private static class SelectorThread extends Thread {
+
+		private final Selector selector;
+
+		/**
+		 * Endpoints waiting to be registered with the selector, which
+		 * has to be done by this thread.
+		 */
+		private final Queue<Endpoint> registrations = new ConcurrentLinkedQueue<>();
+
+		private volatile boolean running=true;
+
+		public SelectorThread(int index) throws IOException {
+			selector = Selector.open();
+			setName("SelectorThread-"+index);
+			setDaemon(true);
+		}
+
+		public void register(Endpoint endpoint) {
+			registrations.add(endpoint);
+			selector.wakeup();
+		}
+
+		public void shutDown() {
+			running=false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					log.severe("selector failed: "+e.getMessage());
+					break;
+				}
+				Endpoint endpoint;
+				while((endpoint=registrations.poll())!=null) {
+					endpoint.startOn(selector);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						Endpoint registered = (Endpoint)key.attachment();
+						if(key.isWritable()) {
+							registered.channelWritable();
+						}
+						if(key.isValid() && key.isReadable()) {
+							registered.channelReadable();
+						}
+					} catch (CancelledKeyException e) {
+						// the endpoint was closed
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warning("selector did not close properly: "+e.getMessage());
+			}
+		}
+	}
+}
@@ -1,11 +1,10 @@
 package whiteboard.protocols;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  * Helper class for using JSON. Example usage:
@@ -27,6 +26,13 @@ import org.json.simple.parser.ParseException;
  * ArrayList<Document> docs2 = (ArrayList<Document>) doc3.get("docList");
  * }
  * </pre>
+ * String values can be given as UTF-8 that is only decoded when the value
+ * is asked for, see {@link #appendUtf8(String, byte[], int, int)} and
+ * {@link #parse(byte[])}, so that a large value that is never used is never
+ * turned into a String. JSON is read and written by
+ * {@link whiteboard.protocols.JsonReader} and
+ * {@link whiteboard.protocols.JsonWriter} rather than json-simple, whose
+ * JSONObject and JSONArray are only used to hold values.
  * @author aaron
  *
  */
@@ -34,6 +40,37 @@ public class Document {
 	
 	protected JSONObject obj;
 	
+	/**
+	 * Number of values in obj that are still {@link Utf8String}s.
+	 */
+	private int utf8Strings=0;
+	
+	/**
+	 * A string value that has not been decoded yet.
+	 */
+	private static class Utf8String {
+		final byte[] bytes;
+		final int offset;
+		final int length;
+		
+		/**
+		 * Whether the bytes have JSON escapes in them, rather than
+		 * being plain UTF-8.
+		 */
+		final boolean escaped;
+		
+		Utf8String(byte[] bytes, int offset, int length, boolean escaped) {
+			this.bytes=bytes;
+			this.offset=offset;
+			this.length=length;
+			this.escaped=escaped;
+		}
+		
+		String decode() {
+			return JsonReader.get().decodeString(bytes,offset,length,escaped);
+		}
+	}
+	
 	public Document(){
 		obj=new JSONObject();
 	}
@@ -42,23 +79,40 @@ public class Document {
 		this.obj = obj;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void append(String key,String val){
-		if(val==null){
-			obj.put(key, null);
-		} else {
-			obj.put(key, new String(val));
-		}
+		put(key, val); // strings are immutable, no need to copy
+	}
+	
+	/**
+	 * Append a string given as UTF-8, which is decoded when the value is
+	 * first asked for. The bytes must not change after.
+	 * @param key
+	 * @param utf8
+	 * @param offset
+	 * @param length
+	 */
+	public void appendUtf8(String key,byte[] utf8,int offset,int length){
+		appendUtf8(key, utf8, offset, length, false);
+	}
+	
+	void appendUtf8(String key,byte[] utf8,int offset,int length,boolean escaped){
+		put(key, new Utf8String(utf8,offset,length,escaped));
 	}
 	
 	@SuppressWarnings("unchecked")
+	void put(String key,Object val){
+		Object old = obj.put(key, val);
+		if(old instanceof Utf8String) utf8Strings--;
+		if(val instanceof Utf8String) utf8Strings++;
+	}
+	
 	public void append(String key,Document doc){
-		obj.put(key, doc.obj);
+		doc.decodeAll();
+		put(key, doc.obj);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void append(String key,boolean val){
-		obj.put(key, Boolean.valueOf(val));
+		put(key, Boolean.valueOf(val));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -71,46 +125,105 @@ public class Document {
 				list.add(o);
 			}
 		}
-		obj.put(key,list);
+		put(key,list);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void append(String key,long val){
-		obj.put(key, Long.valueOf(val));
+		put(key, Long.valueOf(val));
 	}
 	
-	@SuppressWarnings("unchecked")
 	public void append(String key,int val){
-		obj.put(key, Integer.valueOf(val));
+		put(key, Integer.valueOf(val));
 	}
 	
 	public String toJson(){
-		return obj.toJSONString();
+		StringBuilder out = new StringBuilder();
+		writeJson(out);
+		return out.toString();
+	}
+	
+	/**
+	 * Append the document as JSON, to a builder that can be reused.
+	 * @param out
+	 */
+	public void writeJson(StringBuilder out){
+		decodeAll();
+		JsonWriter.writeObject(obj, out);
+	}
+	
+	private void decodeAll(){
+		if(utf8Strings==0) return;
+		for(Object key : obj.keySet().toArray()) {
+			value(key);
+		}
 	}
 	
 	public static Document parse(String json) {
-		JSONParser parser = new JSONParser();
-		try {
-			JSONObject obj  = (JSONObject) parser.parse(json);
-			return new Document(obj);
-		} catch (ParseException e) {
-			return new Document();
-		} catch (ClassCastException e){
-			return new Document();
+		return parse(json.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Turn a JSON object given as UTF-8 into a document, without decoding
+	 * its long string values until they are asked for. Other values are
+	 * read straight away.
+	 * @param json the bytes of the object, which must not change after
+	 * @return the document, which is empty if the JSON is not valid
+	 */
+	public static Document parse(byte[] json) {
+		Document doc = JsonReader.get().readDocument(json);
+		return doc!=null ? doc : new Document();
+	}
+	
+	/**
+	 * Turn a JSON object given as UTF-8 into a document, reading it where it
+	 * is in a buffer that is reused after. Only the long string values are
+	 * copied out of the buffer, so that they can still be decoded when they
+	 * are asked for.
+	 * @param json
+	 * @param offset of the object
+	 * @param length of the object
+	 * @return the document, which is empty if the JSON is not valid
+	 */
+	public static Document parse(byte[] json, int offset, int length) {
+		Document doc = JsonReader.get().readDocument(json,offset,length,true);
+		return doc!=null ? doc : new Document();
+	}
+	
+	/**
+	 * The value of a key, decoding it first if it is a {@link Utf8String}.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object value(Object key){
+		Object o = obj.get(key);
+		if(o instanceof Utf8String) {
+			o = ((Utf8String)o).decode();
+			obj.put(key, o);
+			utf8Strings--;
 		}
+		return o;
 	}
 	
 	public boolean containsKey(String key){
 		return obj.containsKey(key);
 	}
 	
+	/**
+	 * Whether the value of a key is a string, without decoding it.
+	 * @param key
+	 * @return
+	 */
+	public boolean isString(String key){
+		Object o = obj.get(key);
+		return o instanceof String || o instanceof Utf8String;
+	}
+	
 	public String getString(String key){
-		return (String) obj.get(key);
+		return (String) value(key);
 	}
 	
 	private ArrayList<Object> getList(JSONArray o){
 		ArrayList<Object> list = new ArrayList<Object>();
-		for(Object l : (JSONArray)o){
+		for(Object l : o){
 			if(l instanceof JSONObject){
 				list.add(new Document((JSONObject) l));
 			} else if(l instanceof JSONArray){
@@ -123,7 +236,7 @@ public class Document {
 	}
 	
 	public Object get(String key){
-		Object o = obj.get(key);
+		Object o = value(key);
 		if(o instanceof JSONObject){
 			return (Object) new Document((JSONObject) o);
 		} else if(o instanceof JSONArray){
@@ -135,14 +248,14 @@ public class Document {
 	}
 	
 	public int getInteger(String key){
-		return (int) obj.get(key);
+		return (int) value(key);
 	}
 	
 	public long getLong(String key){
-		return (long) obj.get(key);
+		return (long) value(key);
 	}
 	
 	public boolean getBoolean(String key){
-		return (boolean) obj.get(key);
+		return (boolean) value(key);
 	}
 }
@@ -0,0 +1,16 @@
+package whiteboard.protocols;
+
+/**
+ * Creates a message from its parameters in a doc.
+ * 
+ * @see {@link whiteboard.protocols.ProtocolRegistry#registerMessage(String, IMessageFactory)}
+ */
+@FunctionalInterface
+public interface IMessageFactory {
+	/**
+	 * @param doc with the message details
+	 * @return the message
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public Message toMessage(Document doc) throws InvalidMessage;
+}
@@ -0,0 +1,20 @@
+package whiteboard.protocols;
+
+import whiteboard.managers.endpoint.Endpoint;
+import whiteboard.managers.endpoint.IEndpointHandler;
+
+/**
+ * Creates a protocol when the other endpoint starts using it.
+ * 
+ * @see {@link whiteboard.protocols.ProtocolRegistry#registerProtocol(String, IProtocolFactory)}
+ */
+@FunctionalInterface
+public interface IProtocolFactory {
+	/**
+	 * @param endpoint the endpoint that is to handle the protocol
+	 * @param manager the manager of the endpoint, which the protocol
+	 * reports to
+	 * @return the new protocol
+	 */
+	public Protocol newProtocol(Endpoint endpoint, IEndpointHandler manager);
+}
@@ -0,0 +1,349 @@
+package whiteboard.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Reads JSON given as UTF-8 straight from its bytes, for
+ * {@link whiteboard.protocols.Document}. Values are read as the same types
+ * that json-simple gives, i.e. a JSONObject, a JSONArray, a String, a Long
+ * for a whole number, a Double for any other number, a Boolean or null.
+ * <br/>
+ * Each thread reuses a reader, see {@link #get()}, which keeps the buffer it
+ * decodes strings with. The top level of a document is read lazily: long
+ * strings are not decoded until they are asked for.
+ *
+ * @see {@link whiteboard.protocols.JsonWriter}
+ */
+final class JsonReader {
+
+	/**
+	 * Strings at the top level of a document that are at least this many
+	 * bytes long are only decoded when asked for.
+	 */
+	static final int lazyStringLength = 64;
+
+	private static final ThreadLocal<JsonReader> readers = ThreadLocal.withInitial(JsonReader::new);
+
+	/**
+	 * Reused to decode strings that have escapes.
+	 */
+	private char[] chars = new char[256];
+
+	/**
+	 * The JSON being read, the position in it and where it ends.
+	 */
+	private byte[] json;
+	private int pos;
+	private int end;
+
+	/**
+	 * Whether the last string skipped had any escapes.
+	 */
+	private boolean escaped;
+
+	private JsonReader() {}
+
+	/**
+	 * @return the reader of the current thread
+	 */
+	static JsonReader get() {
+		return readers.get();
+	}
+
+	/**
+	 * Read a JSON object into a document, leaving its long strings undecoded.
+	 * @param json the bytes of the object, which must not change after
+	 * @return the document, or null if the JSON is not a valid object
+	 */
+	Document readDocument(byte[] json) {
+		return readDocument(json,0,json.length,false);
+	}
+
+	/**
+	 * Read a JSON object into a document, leaving its long strings undecoded.
+	 * @param json
+	 * @param offset of the object
+	 * @param length of the object
+	 * @param reused whether the bytes may change after, in which case the
+	 * long strings are copied out of them
+	 * @return the document, or null if the JSON is not a valid object
+	 */
+	Document readDocument(byte[] json, int offset, int length, boolean reused) {
+		this.json=json;
+		pos=offset;
+		end=offset+length;
+		try {
+			Document doc = new Document();
+			skipSpace();
+			expect('{');
+			skipSpace();
+			if(peek()=='}') {
+				pos++;
+			} else {
+				do {
+					skipSpace();
+					String key = readString();
+					skipSpace();
+					expect(':');
+					skipSpace();
+					if(peek()=='"') {
+						int start = pos+1;
+						skipString();
+						int stringLength = pos-1-start;
+						if(stringLength<lazyStringLength) {
+							doc.put(key,decodeString(json,start,stringLength,escaped));
+						} else if(reused) {
+							doc.appendUtf8(key,Arrays.copyOfRange(json,start,pos-1),0,stringLength,escaped);
+						} else {
+							doc.appendUtf8(key,json,start,stringLength,escaped);
+						}
+					} else {
+						doc.put(key,readValue());
+					}
+					skipSpace();
+				} while(next()==',');
+				pos--;
+				expect('}');
+			}
+			skipSpace();
+			return pos==end ? doc : null;
+		} catch (InvalidMessage e) {
+			return null;
+		} finally {
+			this.json=null;
+		}
+	}
+
+	/**
+	 * Decode a string from its bytes, which are UTF-8 that may have JSON
+	 * escapes in it.
+	 * @param bytes
+	 * @param offset of the string, after its opening quote
+	 * @param length of the string, not including its closing quote
+	 * @param escaped whether there are escapes in the string
+	 * @return the string, or null if it has an escape that is not valid,
+	 * which can not be the case for a string that has been skipped by
+	 * {@link #skipString()}
+	 */
+	String decodeString(byte[] bytes, int offset, int length, boolean escaped) {
+		if(!escaped) return new String(bytes,offset,length,StandardCharsets.UTF_8);
+		if(chars.length<length) chars = new char[Math.max(length,chars.length*2)];
+		int n=0;
+		int end = offset+length;
+		int i = offset;
+		while(i<end) {
+			int b = bytes[i] & 0xff;
+			if(b=='\\') {
+				if(i+1>=end) return null;
+				switch(bytes[i+1]) {
+				case '"': chars[n++]='"'; break;
+				case '\\': chars[n++]='\\'; break;
+				case '/': chars[n++]='/'; break;
+				case 'b': chars[n++]='\b'; break;
+				case 'f': chars[n++]='\f'; break;
+				case 'n': chars[n++]='\n'; break;
+				case 'r': chars[n++]='\r'; break;
+				case 't': chars[n++]='\t'; break;
+				case 'u':
+					if(i+6>end) return null;
+					int c=0;
+					for(int j=i+2;j<i+6;j++) {
+						int digit = Character.digit(bytes[j],16);
+						if(digit<0) return null;
+						c = c<<4 | digit;
+					}
+					chars[n++]=(char)c;
+					i+=4;
+					break;
+				default: return null;
+				}
+				i+=2;
+			} else if(b<0x80) {
+				chars[n++]=(char)b;
+				i++;
+			} else if(b>>5==0x6 && i+1<end) {
+				chars[n++]=(char)((b & 0x1f)<<6 | bytes[i+1] & 0x3f);
+				i+=2;
+			} else if(b>>4==0xe && i+2<end) {
+				chars[n++]=(char)((b & 0x0f)<<12 | (bytes[i+1] & 0x3f)<<6 | bytes[i+2] & 0x3f);
+				i+=3;
+			} else if(b>>3==0x1e && i+3<end) {
+				int codePoint = (b & 0x07)<<18 | (bytes[i+1] & 0x3f)<<12
+						| (bytes[i+2] & 0x3f)<<6 | bytes[i+3] & 0x3f;
+				chars[n++]=Character.highSurrogate(codePoint);
+				chars[n++]=Character.lowSurrogate(codePoint);
+				i+=4;
+			} else {
+				chars[n++]='\uFFFD';
+				i++;
+			}
+		}
+		return new String(chars,0,n);
+	}
+
+	/**
+	 * Read any value, decoding all of it.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object readValue() throws InvalidMessage {
+		switch(peek()) {
+		case '"':
+			return readString();
+		case '{':
+			pos++;
+			JSONObject obj = new JSONObject();
+			skipSpace();
+			if(peek()=='}') {
+				pos++;
+				return obj;
+			}
+			do {
+				skipSpace();
+				String key = readString();
+				skipSpace();
+				expect(':');
+				skipSpace();
+				obj.put(key,readValue());
+				skipSpace();
+			} while(next()==',');
+			pos--;
+			expect('}');
+			return obj;
+		case '[':
+			pos++;
+			JSONArray array = new JSONArray();
+			skipSpace();
+			if(peek()==']') {
+				pos++;
+				return array;
+			}
+			do {
+				skipSpace();
+				array.add(readValue());
+				skipSpace();
+			} while(next()==',');
+			pos--;
+			expect(']');
+			return array;
+		case 't':
+			expectWord("true");
+			return Boolean.TRUE;
+		case 'f':
+			expectWord("false");
+			return Boolean.FALSE;
+		case 'n':
+			expectWord("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	private String readString() throws InvalidMessage {
+		if(peek()!='"') throw new InvalidMessage();
+		int start = pos+1;
+		skipString();
+		String s = decodeString(json,start,pos-1-start,escaped);
+		if(s==null) throw new InvalidMessage();
+		return s;
+	}
+
+	/**
+	 * Move past a string, noting whether it has escapes. The escapes are
+	 * checked here, so that a string that is only decoded when asked for
+	 * is rejected just as one that is decoded straight away.
+	 */
+	private void skipString() throws InvalidMessage {
+		escaped=false;
+		// bytes of multi-byte characters are never quotes or backslashes
+		for(pos++;pos<end;pos++) {
+			byte b = json[pos];
+			if(b=='\\') {
+				escaped=true;
+				if(++pos>=end) break;
+				switch(json[pos]) {
+				case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+					break;
+				case 'u':
+					if(pos+4>=end) throw new InvalidMessage();
+					for(int i=pos+1;i<=pos+4;i++) {
+						if(Character.digit(json[i],16)<0) throw new InvalidMessage();
+					}
+					pos+=4;
+					break;
+				default:
+					throw new InvalidMessage();
+				}
+			} else if(b=='"') {
+				pos++;
+				return;
+			}
+		}
+		throw new InvalidMessage();
+	}
+
+	private Object readNumber() throws InvalidMessage {
+		int start = pos;
+		boolean whole = true;
+		while(pos<end) {
+			byte b = json[pos];
+			if(b>='0' && b<='9' || b=='-' || b=='+') {
+				pos++;
+			} else if(b=='.' || b=='e' || b=='E') {
+				whole=false;
+				pos++;
+			} else {
+				break;
+			}
+		}
+		if(pos==start) throw new InvalidMessage();
+		int i = json[start]=='-' ? start+1 : start;
+		if(whole && i<pos && pos-i<=18) {
+			long number = 0;
+			for(;i<pos;i++) {
+				if(json[i]<'0' || json[i]>'9') throw new InvalidMessage();
+				number = number*10+(json[i]-'0');
+			}
+			return Long.valueOf(json[start]=='-' ? -number : number);
+		}
+		String s = new String(json,start,pos-start,StandardCharsets.US_ASCII);
+		try {
+			return whole ? (Object)Long.valueOf(s) : (Object)Double.valueOf(s);
+		} catch (NumberFormatException e) {
+			throw new InvalidMessage();
+		}
+	}
+
+	private void skipSpace() {
+		while(pos<end) {
+			byte b = json[pos];
+			if(b!=' ' && b!='\t' && b!='\n' && b!='\r') return;
+			pos++;
+		}
+	}
+
+	private int peek() throws InvalidMessage {
+		if(pos>=end) throw new InvalidMessage();
+		return json[pos];
+	}
+
+	private int next() throws InvalidMessage {
+		int b = peek();
+		pos++;
+		return b;
+	}
+
+	private void expect(char c) throws InvalidMessage {
+		if(next()!=c) throw new InvalidMessage();
+	}
+
+	private void expectWord(String word) throws InvalidMessage {
+		for(int i=0;i<word.length();i++) {
+			expect(word.charAt(i));
+		}
+	}
+}
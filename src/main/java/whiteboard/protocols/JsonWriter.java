@@ -0,0 +1,117 @@
+package whiteboard.protocols;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes values as JSON into a StringBuilder that the caller can reuse, for
+ * {@link whiteboard.protocols.Document}. The output is the same as json-simple
+ * gives for the same values, escapes included, so that any peer reads it
+ * just the same.
+ *
+ * @see {@link whiteboard.protocols.JsonReader}
+ */
+final class JsonWriter {
+
+	private static final char[] hexDigits = "0123456789ABCDEF".toCharArray();
+
+	private JsonWriter() {}
+
+	/**
+	 * Write a value, which must be one of the types that a document holds.
+	 * @param value
+	 * @param out
+	 */
+	static void writeValue(Object value, StringBuilder out) {
+		if(value==null) {
+			out.append("null");
+		} else if(value instanceof String) {
+			writeString((String)value,out);
+		} else if(value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			out.append(((Number)value).longValue());
+		} else if(value instanceof Double) {
+			double d = (Double)value;
+			if(Double.isInfinite(d) || Double.isNaN(d)) out.append("null");
+			else out.append(d);
+		} else if(value instanceof Float) {
+			float f = (Float)value;
+			if(Float.isInfinite(f) || Float.isNaN(f)) out.append("null");
+			else out.append(f);
+		} else if(value instanceof Boolean) {
+			out.append(((Boolean)value).booleanValue());
+		} else if(value instanceof Map) {
+			writeObject((Map<?,?>)value,out);
+		} else if(value instanceof List) {
+			out.append('[');
+			boolean first = true;
+			for(Object item : (List<?>)value) {
+				if(!first) out.append(',');
+				first=false;
+				writeValue(item,out);
+			}
+			out.append(']');
+		} else {
+			out.append(value.toString());
+		}
+	}
+
+	/**
+	 * Write the entries of a map as an object.
+	 * @param map
+	 * @param out
+	 */
+	static void writeObject(Map<?,?> map, StringBuilder out) {
+		out.append('{');
+		boolean first = true;
+		for(Map.Entry<?,?> entry : map.entrySet()) {
+			if(!first) out.append(',');
+			first=false;
+			writeString(String.valueOf(entry.getKey()),out);
+			out.append(':');
+			writeValue(entry.getValue(),out);
+		}
+		out.append('}');
+	}
+
+	/**
+	 * Write a string, quoted and escaped.
+	 * @param s
+	 * @param out
+	 */
+	static void writeString(String s, StringBuilder out) {
+		out.append('"');
+		int n = s.length();
+		int start = 0;
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(!needsEscape(c)) continue;
+			// copy the run of characters that need no escape in one go
+			out.append(s,start,i);
+			start=i+1;
+			switch(c) {
+			case '"': out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '/': out.append("\\/"); break;
+			case '\b': out.append("\\b"); break;
+			case '\f': out.append("\\f"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			default:
+				out.append("\\u").append(hexDigits[c>>12 & 0xf]).append(hexDigits[c>>8 & 0xf])
+						.append(hexDigits[c>>4 & 0xf]).append(hexDigits[c & 0xf]);
+			}
+		}
+		out.append(s,start,n);
+		out.append('"');
+	}
+
+	/**
+	 * The characters that json-simple escapes.
+	 */
+	private static boolean needsEscape(char c) {
+		return c<0x20 || c=='"' || c=='\\' || c=='/'
+				|| (c>=0x7f && c<=0x9f) || (c>=0x2000 && c<=0x20ff);
+	}
+}
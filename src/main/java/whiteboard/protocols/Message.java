@@ -1,18 +1,14 @@
 package whiteboard.protocols;
 
-import whiteboard.protocols.event.EventReply;
-import whiteboard.protocols.event.EventRequest;
-import whiteboard.protocols.keepalive.KeepAliveReply;
-import whiteboard.protocols.keepalive.KeepAliveRequest;
-import whiteboard.protocols.session.SessionStartReply;
-import whiteboard.protocols.session.SessionStartRequest;
-import whiteboard.protocols.session.SessionStopReply;
-import whiteboard.protocols.session.SessionStopRequest;
-
 /**
  * Message super class and factory for all protocol messages, to parse a
  * received UTF-8 line of text in JSON format, as an object that represents the
- * message.
+ * message. Message types are found by name in the
+ * {@link whiteboard.protocols.ProtocolRegistry}.
+ * <br/>
+ * A message keeps its header and parameters in fields of its own, a
+ * {@link whiteboard.protocols.Document} is only used to decode the message
+ * from JSON and to encode it as JSON.
  * 
  * @see {@link whiteboard.protocols.Protocol}
  * @author aaron
@@ -28,9 +24,21 @@ public class Message {
 	}
 	
 	/**
-	 * All of the message parameters are wrapped up in a Document class.
+	 * The header of the message, which is all that is needed to route it.
+	 */
+	private final String name;
+	private final String protocolName;
+	private final Message.Type type;
+	
+	/**
+	 * Id of the protocol the message belongs to.
+	 */
+	private final int protocolId;
+	
+	/**
+	 * Id of the timeout the message is sent with or replies to, 0 if none.
 	 */
-	protected Document doc;
+	private long timeoutId=0;
 	
 	/**
 	 * Initialiser when given parameters explicitly.
@@ -39,10 +47,10 @@ public class Message {
 	 * @param type whether its a Request or a Reply message
 	 */
 	public Message(String name, String protocolName, Message.Type type) {
-		doc = new Document();
-		doc.append("name", name);
-		doc.append("protocolName", protocolName);
-		doc.append("type", type.toString());
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
+		protocolId = ProtocolRegistry.getProtocolId(protocolName);
 	}
 	
 	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
@@ -59,11 +67,14 @@ public class Message {
 	
 	static public void validateStringType(String key,Document doc) throws InvalidMessage {
 		if(!doc.containsKey(key)) throw new InvalidMessage();
-		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
+		// without decoding the string, which may never be needed
+		if(!doc.isString(key)) throw new InvalidMessage();
 	}
 	
 	/**
-	 * Initialiser when given parameters in a doc.
+	 * Initialiser when given parameters in a doc, which is only used
+	 * to read the parameters from. Subclasses read their own parameters
+	 * from it in the same way.
 	 * @param name the name of the message that is being initialised
 	 * @param doc with the message details
 	 * @throws InvalidMessage when the name of the message in the doc is incorrect
@@ -73,7 +84,14 @@ public class Message {
 		validateStringValue("name",name,doc);
 		validateStringValue("protocolName",protocolName,doc);
 		validateStringValue("type",type.toString(),doc);
-		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+		if(doc.containsKey("timeoutId")) {
+			validateLongType("timeoutId",doc);
+			timeoutId=doc.getLong("timeoutId");
+		}
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
+		protocolId = ProtocolRegistry.getProtocolId(protocolName);
 	}
 	
 	/**
@@ -83,27 +101,46 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn JSON given as UTF-8 into an appropriate message object. Only the
+	 * parameters needed to route the message are decoded straight away, the
+	 * others are decoded when they are asked for.
+	 * @param json the bytes to parse, in JSON format, which must not change after
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 * @see {@link whiteboard.protocols.Document#parse(byte[])}
+	 */
+	static public Message toMessage(byte[] json) throws InvalidMessage {
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn JSON given as UTF-8 in a buffer that is reused after into an
+	 * appropriate message object.
+	 * @param json
+	 * @param offset of the JSON in the buffer
+	 * @param length of the JSON
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 * @see {@link whiteboard.protocols.Document#parse(byte[], int, int)}
+	 */
+	static public Message toMessage(byte[] json, int offset, int length) throws InvalidMessage {
+		return toMessage(Document.parse(json,offset,length));
+	}
+	
+	static private Message toMessage(Document doc) throws InvalidMessage {
 		// the following test is somewhat repetitive, but it avoids having
 		// to test each message type, handling exceptions for those that are
 		// not the matching message type
 		if(!doc.containsKey("name")) throw new InvalidMessage();
 		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString("name");
-		switch(msg) {
-			case KeepAliveRequest.name: return new KeepAliveRequest(doc);
-			case KeepAliveReply.name: return new KeepAliveReply(doc);
-			case SessionStartRequest.name: return new SessionStartRequest(doc);
-			case SessionStartReply.name: return new SessionStartReply(doc);
-			case SessionStopRequest.name: return new SessionStopRequest(doc);
-			case SessionStopReply.name: return new SessionStopReply(doc);
-			case EventRequest.name: return new EventRequest(doc);
-			case EventReply.name: return new EventReply(doc);
-			// put more message cases here
-			
-			// if nothing matches, its invalid
-			default: throw new InvalidMessage();
-		}
+		IMessageFactory factory = ProtocolRegistry.getMessageFactory(doc.getString("name"));
+		// if nothing matches, its invalid
+		if(factory==null) throw new InvalidMessage();
+		return factory.toMessage(doc);
 	}
 	
 	/**
@@ -111,23 +148,65 @@ public class Message {
 	 * @return
 	 */
 	public String toJsonString() {
-		return doc.toJson();
+		return toDocument().toJson();
+	}
+	
+	/**
+	 * Append the message as JSON, to a builder that can be reused.
+	 * @param out
+	 */
+	public void writeJson(StringBuilder out) {
+		toDocument().writeJson(out);
+	}
+	
+	/**
+	 * The message as a document, which is only made to encode the message.
+	 * @return
+	 */
+	private Document toDocument() {
+		Document doc = new Document();
+		doc.append("name", name);
+		doc.append("protocolName", protocolName);
+		doc.append("type", type.toString());
+		if(timeoutId!=0) doc.append("timeoutId", timeoutId);
+		appendParameters(doc);
+		return doc;
+	}
+	
+	/**
+	 * Append the parameters of the message, other than its header, to the
+	 * document it is encoded as. Subclasses that have parameters must
+	 * override this.
+	 * @param doc
+	 */
+	protected void appendParameters(Document doc) {
+		
 	}
 	
 	/**
 	 * Return the protocol name
 	 * @return
 	 */
-	public String getProtocolName() {
-		return doc.getString("protocolName");
+	public final String getProtocolName() {
+		return protocolName;
+	}
+	
+	/**
+	 * Return the id of the protocol, for routing the message without
+	 * looking up the protocol name.
+	 * @return
+	 * @see {@link whiteboard.protocols.ProtocolRegistry#getProtocolId(String)}
+	 */
+	public final int getProtocolId() {
+		return protocolId;
 	}
 	
 	/**
 	 * Return the message name
 	 * @return
 	 */
-	public String getName() {
-		return doc.getString("name");
+	public final String getName() {
+		return name;
 	}
 	
 	/**
@@ -135,7 +214,7 @@ public class Message {
 	 * @return
 	 */
 	public final Message.Type getType() {
-		return Message.Type.valueOf(doc.getString("type"));
+		return type;
 	}
 	
 	/**
@@ -143,7 +222,7 @@ public class Message {
 	 * @param id
 	 */
 	public final void setTimeoutId(long id) {
-		doc.append("timeoutId", id);
+		timeoutId=id;
 	}
 	
 	/**
@@ -151,8 +230,6 @@ public class Message {
 	 * @return id
 	 */
 	public final long getTimeoutId() {
-		if(doc.containsKey("timeoutId"))
-			return doc.getLong("timeoutId");
-		else return 0;
+		return timeoutId;
 	}
 }
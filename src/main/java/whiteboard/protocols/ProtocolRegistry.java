@@ -0,0 +1,140 @@
+package whiteboard.protocols;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import whiteboard.managers.endpoint.Endpoint;
+import whiteboard.managers.endpoint.IEndpointHandler;
+import whiteboard.protocols.event.EventBatch;
+import whiteboard.protocols.event.EventProtocol;
+import whiteboard.protocols.event.EventReply;
+import whiteboard.protocols.event.EventRequest;
+import whiteboard.protocols.event.IEventProtocolHandler;
+import whiteboard.protocols.keepalive.IKeepAliveProtocolHandler;
+import whiteboard.protocols.keepalive.KeepAliveProtocol;
+import whiteboard.protocols.keepalive.KeepAliveReply;
+import whiteboard.protocols.keepalive.KeepAliveRequest;
+import whiteboard.protocols.session.ISessionProtocolHandler;
+import whiteboard.protocols.session.SessionProtocol;
+import whiteboard.protocols.session.SessionStartReply;
+import whiteboard.protocols.session.SessionStartRequest;
+import whiteboard.protocols.session.SessionStopReply;
+import whiteboard.protocols.session.SessionStopRequest;
+
+/**
+ * The protocols and messages that endpoints know about. A protocol registers
+ * a factory, which an endpoint uses when the other endpoint starts using the
+ * protocol, and each of its messages registers a factory, which is used to
+ * turn a received message into an object. New protocols can be added by
+ * registering them, before any endpoint uses them.
+ * <br/>
+ * Each protocol name is given a small integer id, so that an endpoint can
+ * keep the protocols it is handling in an array and route a message to its
+ * protocol without a lock or a string lookup. Lookups never lock, only
+ * registering does.
+ * 
+ * @see {@link whiteboard.managers.endpoint.Endpoint}
+ * @see {@link whiteboard.protocols.Message#toMessage(String)}
+ */
+public final class ProtocolRegistry {
+	private static Logger log = Logger.getLogger(ProtocolRegistry.class.getName());
+	
+	/**
+	 * Protocol ids by protocol name.
+	 */
+	private static final Map<String,Integer> protocolIds = new ConcurrentHashMap<>();
+	
+	/**
+	 * Protocol factories by protocol id, null for a protocol that has an
+	 * id but no factory. Replaced rather than changed.
+	 */
+	private static volatile IProtocolFactory[] protocolFactories = new IProtocolFactory[0];
+	
+	/**
+	 * Message factories by message name.
+	 */
+	private static final Map<String,IMessageFactory> messageFactories = new ConcurrentHashMap<>();
+	
+	static {
+		registerProtocol(SessionProtocol.protocolName,
+				(endpoint,manager)->new SessionProtocol(endpoint,(ISessionProtocolHandler)manager));
+		registerProtocol(KeepAliveProtocol.protocolName,
+				(endpoint,manager)->new KeepAliveProtocol(endpoint,(IKeepAliveProtocolHandler)manager));
+		registerProtocol(EventProtocol.protocolName,
+				(endpoint,manager)->new EventProtocol(endpoint,(IEventProtocolHandler)manager));
+		registerMessage(KeepAliveRequest.name,KeepAliveRequest::new);
+		registerMessage(KeepAliveReply.name,KeepAliveReply::new);
+		registerMessage(SessionStartRequest.name,SessionStartRequest::new);
+		registerMessage(SessionStartReply.name,SessionStartReply::new);
+		registerMessage(SessionStopRequest.name,SessionStopRequest::new);
+		registerMessage(SessionStopReply.name,SessionStopReply::new);
+		registerMessage(EventRequest.name,EventRequest::new);
+		registerMessage(EventReply.name,EventReply::new);
+		registerMessage(EventBatch.name,EventBatch::new);
+	}
+	
+	private ProtocolRegistry() {}
+	
+	/**
+	 * Register a protocol, replacing any factory already registered for it.
+	 * @param protocolName
+	 * @param factory to create the protocol when the other endpoint starts using it
+	 * @return the id of the protocol
+	 */
+	public static synchronized int registerProtocol(String protocolName, IProtocolFactory factory) {
+		int protocolId = getProtocolId(protocolName);
+		IProtocolFactory[] factories = Arrays.copyOf(protocolFactories,
+				Math.max(protocolFactories.length,protocolId+1));
+		factories[protocolId] = factory;
+		protocolFactories = factories;
+		return protocolId;
+	}
+	
+	/**
+	 * Ids are given out in order from 0 and never change, a protocol that
+	 * has not been registered is given one as well.
+	 * @param protocolName
+	 * @return the id of the protocol
+	 */
+	public static int getProtocolId(String protocolName) {
+		Integer protocolId = protocolIds.get(protocolName);
+		if(protocolId!=null) return protocolId;
+		synchronized(ProtocolRegistry.class) {
+			return protocolIds.computeIfAbsent(protocolName,(name)->protocolIds.size());
+		}
+	}
+	
+	/**
+	 * Create a protocol that the other endpoint has started using.
+	 * @param protocolId
+	 * @param endpoint the endpoint that is to handle the protocol
+	 * @param manager the manager of the endpoint
+	 * @return the new protocol, or null if no such protocol has been registered
+	 */
+	public static Protocol newProtocol(int protocolId, Endpoint endpoint, IEndpointHandler manager) {
+		IProtocolFactory[] factories = protocolFactories;
+		if(protocolId>=factories.length || factories[protocolId]==null) return null;
+		return factories[protocolId].newProtocol(endpoint,manager);
+	}
+	
+	/**
+	 * Register a message, replacing any factory already registered for it.
+	 * @param name of the message
+	 * @param factory to turn the message into an object
+	 */
+	public static void registerMessage(String name, IMessageFactory factory) {
+		if(messageFactories.put(name,factory)!=null) {
+			log.warning("message registered again: "+name);
+		}
+	}
+	
+	/**
+	 * @param name of the message
+	 * @return the factory for the message, or null if it has not been registered
+	 */
+	public static IMessageFactory getMessageFactory(String name) {
+		return messageFactories.get(name);
+	}
+}
@@ -0,0 +1,108 @@
+package whiteboard.protocols.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import whiteboard.protocols.Document;
+import whiteboard.protocols.InvalidMessage;
+import whiteboard.protocols.Message;
+
+/**
+ * Many events sent as one request, which are emitted in order by the other
+ * endpoint and replied to or acknowledged as though they were one event.
+ * Only sent if both endpoints have agreed to it, see
+ * {@link whiteboard.managers.endpoint.Endpoint#eventBatchCapability}.
+ * @see {@link whiteboard.protocols.event.EventProtocol}
+ */
+public class EventBatch extends Message {
+	static final public String name = "EventBatch";
+	
+	private final ArrayList<String> eventNames;
+	private final ArrayList<String> eventData;
+	
+	/**
+	 * Sequence number of a windowed batch, 0 if the batch is not windowed.
+	 */
+	private long seq=0;
+	
+	/**
+	 * Initialiser for a batch that events are then added to.
+	 */
+	public EventBatch() {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		eventNames = new ArrayList<>();
+		eventData = new ArrayList<>();
+	}
+	
+	public EventBatch(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		eventNames = getStrings("eventNames",doc);
+		eventData = getStrings("eventData",doc);
+		if(eventNames.size()!=eventData.size()) throw new InvalidMessage();
+		if(doc.containsKey("seq")) {
+			Message.validateLongType("seq", doc);
+			seq=doc.getLong("seq");
+		}
+	}
+	
+	private static ArrayList<String> getStrings(String key, Document doc) throws InvalidMessage {
+		Object value = doc.get(key);
+		if(!(value instanceof List)) throw new InvalidMessage();
+		ArrayList<String> strings = new ArrayList<>();
+		for(Object o : (List<?>)value) {
+			if(!(o instanceof String)) throw new InvalidMessage();
+			strings.add((String)o);
+		}
+		return strings;
+	}
+	
+	@Override
+	protected void appendParameters(Document doc) {
+		doc.append("eventNames", eventNames);
+		doc.append("eventData", eventData);
+		if(seq!=0) doc.append("seq", seq);
+	}
+	
+	/**
+	 * Add an event to the end of the batch.
+	 * @param eventName
+	 * @param data
+	 */
+	public void add(String eventName, String data) {
+		eventNames.add(eventName);
+		eventData.add(data);
+	}
+	
+	/**
+	 *
+	 * @return the number of events in the batch
+	 */
+	public int size() {
+		return eventNames.size();
+	}
+	
+	public String getEventName(int i) {
+		return eventNames.get(i);
+	}
+	
+	public String getEventData(int i) {
+		return eventData.get(i);
+	}
+	
+	/**
+	 * Set the sequence number of a windowed batch, which is acknowledged
+	 * cumulatively along with windowed events.
+	 * @param seq
+	 */
+	public void setSeq(long seq) {
+		this.seq=seq;
+	}
+	
+	/**
+	 *
+	 * @return the sequence number, or 0 if the batch is not windowed
+	 */
+	public long getSeq() {
+		return seq;
+	}
+}
@@ -1,5 +1,7 @@
 package whiteboard.protocols.event;
 
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.logging.Logger;
 
 import whiteboard.managers.Manager;
@@ -7,11 +9,40 @@ import whiteboard.managers.endpoint.Endpoint;
 import whiteboard.protocols.IRequestReplyProtocol;
 import whiteboard.protocols.Message;
 import whiteboard.protocols.Protocol;
+import whiteboard.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * If both endpoints have agreed to it (see
+ * {@link whiteboard.managers.endpoint.Endpoint#eventWindowCapability}) events
+ * are windowed: each event carries a sequence number and the other endpoint
+ * acknowledges many events at once with a single reply, every
+ * {@link #ackEvery} events or {@link #ackDelay} ms after an event it has not
+ * acknowledged yet. At most {@link #eventWindow} events are sent without being
+ * acknowledged, further events are held back until acknowledgements arrive.
+ * Once {@link #maxHeldBack} events are held back the backpressure policy of
+ * the endpoint applies to them, as it does to the frames queued to be written.
+ * Rather than a timeout per event there is a single timeout, the endpoint has
+ * timed out if the events that had been sent when it was set are not all
+ * acknowledged when it expires, which is decided by
+ * {@link whiteboard.managers.endpoint.Endpoint#timeoutRemaining(long, int)}
+ * just as for the timeout of a single message. One windowed event at a time
+ * is timed until it is acknowledged, to measure the round trip time. Otherwise
+ * each event is sent with a timeout of its own and answered with a reply of its own.
+ * <br/>
+ * If both endpoints have agreed to it (see
+ * {@link whiteboard.managers.endpoint.Endpoint#eventBatchCapability}) small
+ * events sent within {@link #batchLinger} ms of each other are sent together
+ * as an {@link whiteboard.protocols.event.EventBatch}, which is windowed,
+ * given a timeout and replied to as though it were a single event. Events
+ * that supersede each other are never batched. Events can also be batched
+ * explicitly, see {@link #sendEvents(List, List)}.
+ * <br/>
+ * Unreliable events (see {@link #sendUnreliableEvent(String, String)}) are
+ * neither windowed nor given a timeout, and are not replied to.
  * @author aaron
  *
  */
@@ -22,8 +53,127 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public int eventTimeout = 40000;
 	
+	/**
+	 * Most windowed events that can be sent without being acknowledged.
+	 */
+	public int eventWindow = 64;
+	
+	/**
+	 * Most windowed events held back before the backpressure policy of the
+	 * endpoint applies.
+	 */
+	public int maxHeldBack = 1024;
+	
+	/**
+	 * Windowed events received before they are acknowledged.
+	 */
+	public int ackEvery = 16;
+	
+	/**
+	 * Longest time in ms that a received windowed event goes unacknowledged.
+	 */
+	public int ackDelay = 20;
+	
+	/**
+	 * Longest time in ms that an event waits to be batched with the events
+	 * sent after it, 0 to never batch events unless asked to.
+	 */
+	public int batchLinger = 10;
+	
+	/**
+	 * Most events that are batched together.
+	 */
+	public int maxBatchEvents = 64;
+	
+	/**
+	 * Events with at least this much data are sent on their own.
+	 */
+	public int maxBatchedData = 1024;
+	
 	public volatile boolean stopped=false;
 	
+	/*
+	 * Sending windowed events, guarded by the endpoint since events
+	 * are sent while it is locked.
+	 */
+	
+	/**
+	 * Sequence number of the next windowed event to send.
+	 */
+	private long nextSeq=1;
+	
+	/**
+	 * Sequence number of the last windowed event acknowledged.
+	 */
+	private long lastAcked=0;
+	
+	/**
+	 * Events held back until there is room in the window.
+	 */
+	private final ArrayDeque<Message> heldBack = new ArrayDeque<>();
+	
+	/**
+	 * Whether too many events were held back and the endpoint is being
+	 * disconnected, so that further events are dropped.
+	 */
+	private boolean overflowed=false;
+	
+	/**
+	 * Whether the acknowledgement timeout is set.
+	 */
+	private boolean ackTimeoutSet=false;
+	
+	/**
+	 * The events up to here must be acknowledged before the
+	 * acknowledgement timeout expires.
+	 */
+	private long ackTimeoutSeq=0;
+	
+	/**
+	 * Time in ms that the acknowledgement timeout was set for the events
+	 * up to {@link #ackTimeoutSeq}.
+	 */
+	private long ackTimeoutSetAt=0;
+	
+	/**
+	 * Sequence number of the windowed event being timed, 0 if none is.
+	 */
+	private long timedSeq=0;
+	
+	/**
+	 * Time in ms that the timed event was sent.
+	 */
+	private long timedSentAt=0;
+	
+	/**
+	 * Events waiting to be sent in a batch, null if there are none.
+	 */
+	private EventBatch batch=null;
+	
+	/**
+	 * Whether the batch is set to be sent after {@link #batchLinger}.
+	 */
+	private boolean batchTimeoutSet=false;
+	
+	/*
+	 * Receiving windowed events, guarded by this.
+	 */
+	
+	/**
+	 * Sequence number of the last windowed event received.
+	 */
+	private long lastReceived=0;
+	
+	/**
+	 * Windowed events received and not acknowledged.
+	 */
+	private int unacked=0;
+	
+	/**
+	 * Whether an acknowledgement is due after {@link #ackDelay}.
+	 */
+	private boolean ackDue=false;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -53,7 +203,92 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		if(batchLinger>0 && eventData!=null && eventData.length()<maxBatchedData
+				&& !endpoint.isSupersedable(eventName)
+				&& endpoint.hasCapability(Endpoint.eventBatchCapability)) {
+			synchronized(endpoint) {
+				if(batch==null) batch=new EventBatch();
+				batch.add(eventName,eventData);
+				if(batch.size()>=maxBatchEvents) {
+					sendBatch();
+				} else if(!batchTimeoutSet) {
+					batchTimeoutSet=true;
+					Utils.getInstance().setTimeout(this::batchLingered, batchLinger);
+				}
+			}
+			return;
+		}
+		synchronized(endpoint) {
+			// after the events waiting to be batched
+			sendBatch();
+			sendRequest(new EventRequest(eventName,eventData));
+		}
+	}
+	
+	/**
+	 * Send events together as a single batch, after any events waiting
+	 * to be batched, or one by one if the other endpoint has not agreed
+	 * to batches.
+	 * @param eventNames
+	 * @param eventData the data of each event, in the same order
+	 */
+	public void sendEvents(List<String> eventNames, List<String> eventData) {
+		if(stopped)return;
+		synchronized(endpoint) {
+			sendBatch();
+			if(!endpoint.hasCapability(Endpoint.eventBatchCapability)) {
+				for(int i=0;i<eventNames.size();i++) {
+					sendRequest(new EventRequest(eventNames.get(i),eventData.get(i)));
+				}
+				return;
+			}
+			batch=new EventBatch();
+			for(int i=0;i<eventNames.size();i++) {
+				batch.add(eventNames.get(i),eventData.get(i));
+			}
+			sendBatch();
+		}
+	}
+	
+	/**
+	 * Send the events waiting to be batched, if there are any. Must be
+	 * called with the endpoint locked.
+	 */
+	private void sendBatch() {
+		if(batch==null) return;
+		EventBatch sending=batch;
+		batch=null;
+		if(sending.size()==1) {
+			sendRequest(new EventRequest(sending.getEventName(0),sending.getEventData(0)));
+		} else if(sending.size()>1) {
+			sendRequest(sending);
+		}
+	}
+	
+	/**
+	 * The events waiting to be batched have waited long enough. Called by
+	 * the timer thread, which the endpoint never lets wait for room, so the
+	 * batch is queued even if the endpoint is saturated.
+	 */
+	private void batchLingered() {
+		synchronized(endpoint) {
+			batchTimeoutSet=false;
+			if(!stopped) sendBatch();
+		}
+	}
+	
+	/**
+	 * Send an event without a timeout, that the other side does not reply
+	 * to, for frequent events that are soon out of date anyway. It may
+	 * overtake windowed events that are held back, and events waiting
+	 * to be batched.
+	 * @param eventName
+	 * @param eventData
+	 * @return true if the event was sent, false otherwise
+	 */
+	public boolean sendUnreliableEvent(String eventName, String eventData) {
+		if(stopped)return false;
+		return endpoint.send(new EventRequest(eventName,eventData));
 	}
 	
 	@Override
@@ -76,24 +311,245 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void sendRequest(Message msg) {
 		if(stopped)return;
+		if(endpoint.hasCapability(Endpoint.eventWindowCapability)) {
+			synchronized(endpoint) {
+				if(overflowed) return;
+				if(heldBack.size()<maxHeldBack || heldBackFull(msg)) {
+					if(heldBack.isEmpty() && nextSeq-1-lastAcked<eventWindow) {
+						sendWindowed(msg);
+					} else {
+						heldBack.add(msg);
+					}
+					return;
+				}
+				if(!overflowed) return;
+			}
+			// disconnect with the endpoint unlocked, since the manager locks others
+			manager.endpointDisconnectedAbruptly(endpoint);
+			return;
+		}
 		endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
 		}, eventTimeout);
 		
 	}
+	
+	/**
+	 * 
+	 * @return true if {@link #maxHeldBack} events are held back, so that the
+	 * backpressure policy of the endpoint applies to further events
+	 */
+	public boolean isSaturated() {
+		synchronized(endpoint) {
+			return heldBack.size()>=maxHeldBack;
+		}
+	}
+	
+	/**
+	 * Apply the backpressure policy of the endpoint to an event that is
+	 * sent when {@link #maxHeldBack} events are held back. Must be called
+	 * with the endpoint locked. When no held back event can be dropped in
+	 * favour of it, the event is blocked if the thread can wait and the
+	 * endpoint is disconnected otherwise, so that no more than
+	 * {@link #maxHeldBack} events are held back.
+	 * @param msg
+	 * @return true if the event can still be sent or held back, false if it
+	 * is dropped, in which case the endpoint must be disconnected when
+	 * {@link #overflowed} is set
+	 */
+	private boolean heldBackFull(Message msg) {
+		switch(endpoint.getBackpressurePolicy()) {
+		case BLOCK:
+			// the threads that the acknowledgements arrive through never wait for them
+			if(!endpoint.canWait()) return true;
+			return awaitHeldBack();
+		case DROP_SUPERSEDED:
+			if(endpoint.supersedes(msg)) {
+				String supersedeKey=endpoint.supersedeKey(msg);
+				// windowed events have no timeouts of their own to cancel
+				if(heldBack.removeIf((held)->supersedeKey.equals(endpoint.supersedeKey(held)))) {
+					return true;
+				}
+			}
+			if(endpoint.canWait()) return awaitHeldBack();
+			return overflow();
+		case DISCONNECT:
+			return overflow();
+		}
+		return true;
+	}
+	
+	/**
+	 * Wait until fewer than {@link #maxHeldBack} events are held back. Must
+	 * be called with the endpoint locked.
+	 * @return true if the event can be sent or held back, false if the
+	 * protocol stopped or the thread was interrupted meanwhile
+	 */
+	private boolean awaitHeldBack() {
+		try {
+			while(!stopped && heldBack.size()>=maxHeldBack) {
+				endpoint.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !stopped;
+	}
+	
+	/**
+	 * Give up on the endpoint since too many events are held back for it.
+	 * The caller disconnects it once the endpoint is unlocked. Must be
+	 * called with the endpoint locked.
+	 * @return false, the event is dropped
+	 */
+	private boolean overflow() {
+		log.warning("more than "+maxHeldBack+" events held back for: "+endpoint.getOtherEndpointId());
+		overflowed=true;
+		return false;
+	}
+	
+	/**
+	 * Send an event or batch of events in the window, setting the
+	 * acknowledgement timeout if it is not set. Must be called with the
+	 * endpoint locked.
+	 * @param msg
+	 */
+	private void sendWindowed(Message msg) {
+		long now = System.currentTimeMillis();
+		if(msg instanceof EventBatch) {
+			((EventBatch)msg).setSeq(nextSeq++);
+		} else {
+			((EventRequest)msg).setSeq(nextSeq++);
+		}
+		endpoint.send(msg);
+		if(timedSeq==0) {
+			timedSeq=nextSeq-1;
+			timedSentAt=now;
+		}
+		if(!ackTimeoutSet) {
+			ackTimeoutSet=true;
+			setAckTimeout(now);
+		}
+	}
+	
+	/**
+	 * Set the acknowledgement timeout for the events sent so far. Must
+	 * be called with the endpoint locked.
+	 * @param now the current time in ms
+	 */
+	private void setAckTimeout(long now) {
+		ackTimeoutSeq=nextSeq-1;
+		ackTimeoutSetAt=now;
+		Utils.getInstance().setTimeout(this::checkAcked,
+				endpoint.timeoutRemaining(now, eventTimeout));
+	}
+	
+	/**
+	 * The acknowledgement timeout has expired.
+	 */
+	private void checkAcked() {
+		boolean timedOut;
+		synchronized(endpoint) {
+			if(stopped) return;
+			timedOut = lastAcked<ackTimeoutSeq;
+			if(timedOut) {
+				long remaining = endpoint.timeoutRemaining(ackTimeoutSetAt, eventTimeout);
+				if(remaining>0) {
+					// the other endpoint is still being heard from
+					Utils.getInstance().setTimeout(this::checkAcked, remaining);
+					return;
+				}
+			} else if(nextSeq-1>lastAcked) {
+				// more events have been sent since, they must be acknowledged in time as well
+				setAckTimeout(System.currentTimeMillis());
+				return;
+			}
+			ackTimeoutSet=false;
+		}
+		if(timedOut) manager.endpointTimedOut(endpoint, this);
+	}
 
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		if(stopped)return;
+		long ack = ((EventReply)msg).getAck();
+		if(ack==0) return; // the reply to a single event, its timeout is already cancelled
+		synchronized(endpoint) {
+			if(ack>lastAcked) lastAcked=Math.min(ack,nextSeq-1);
+			if(timedSeq!=0 && lastAcked>=timedSeq) {
+				endpoint.sampleRtt(System.currentTimeMillis()-timedSentAt);
+				timedSeq=0;
+			}
+			while(!stopped && !heldBack.isEmpty() && nextSeq-1-lastAcked<eventWindow) {
+				sendWindowed(heldBack.poll());
+			}
+			// senders may be waiting for fewer events to be held back
+			endpoint.notifyAll();
+		}
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
+		if(msg instanceof EventBatch) {
+			EventBatch eventBatch = (EventBatch)msg;
+			acknowledge(msg,eventBatch.getSeq());
+			for(int i=0;i<eventBatch.size();i++) {
+				if(endpoint.hasCallbacks(eventBatch.getEventName(i))) {
+					endpoint.localEmit(eventBatch.getEventName(i),eventBatch.getEventData(i));
+				}
+			}
+			return;
+		}
 		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		acknowledge(msg,eventRequest.getSeq());
+		// the data is only decoded if something is listening for it
+		if(endpoint.hasCallbacks(eventRequest.getEventName())) {
+			endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+		}
+	}
+	
+	/**
+	 * Reply to an event or batch of events, or acknowledge it in the
+	 * window.
+	 * @param msg
+	 * @param seq sequence number of a windowed event, 0 otherwise
+	 */
+	private void acknowledge(Message msg, long seq) {
+		if(seq==0) {
+			// unreliable events have no timeout, so nothing waits for a reply
+			if(msg.getTimeoutId()!=0) endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		} else {
+			long ack=0;
+			synchronized(this) {
+				lastReceived=seq;
+				if(++unacked>=ackEvery) {
+					ack=lastReceived;
+					unacked=0;
+				} else if(!ackDue) {
+					ackDue=true;
+					Utils.getInstance().setTimeout(this::sendDelayedAck, ackDelay);
+				}
+			}
+			if(ack!=0) endpoint.send(new EventReply(ack));
+		}
+	}
+	
+	/**
+	 * Acknowledge the windowed events that have not been acknowledged
+	 * within {@link #ackDelay}.
+	 */
+	private void sendDelayedAck() {
+		long ack=0;
+		synchronized(this) {
+			ackDue=false;
+			if(unacked>0) {
+				ack=lastReceived;
+				unacked=0;
+			}
+		}
+		if(ack!=0 && !stopped) endpoint.send(new EventReply(ack));
 	}
 
 	@Override
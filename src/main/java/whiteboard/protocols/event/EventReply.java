@@ -7,12 +7,46 @@ import whiteboard.protocols.Message;
 public class EventReply extends Message {
 	static final public String name = "EventReply";
 	
+	/**
+	 * Sequence number of the last windowed event received, 0 if none.
+	 */
+	private final long ack;
+	
 	public EventReply() {
 		super(name, EventProtocol.protocolName, Message.Type.Reply);
+		ack=0;
+	}
+	
+	/**
+	 * Reply that acknowledges all windowed events up to a sequence number.
+	 * @param ack sequence number of the last event received
+	 */
+	public EventReply(long ack) {
+		super(name, EventProtocol.protocolName, Message.Type.Reply);
+		this.ack=ack;
 	}
 
 	public EventReply(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		if(doc.containsKey("ack")) {
+			Message.validateLongType("ack", doc);
+			ack=doc.getLong("ack");
+		} else {
+			ack=0;
+		}
+	}
+	
+	@Override
+	protected void appendParameters(Document doc) {
+		if(ack!=0) doc.append("ack", ack);
+	}
+	
+	/**
+	 * 
+	 * @return the sequence number of the last windowed event received, or 0
+	 * if this is the reply to a single event
+	 */
+	public long getAck() {
+		return ack;
 	}
 }
@@ -1,5 +1,7 @@
 package whiteboard.protocols.event;
 
+import java.nio.charset.StandardCharsets;
+
 import whiteboard.protocols.Document;
 import whiteboard.protocols.InvalidMessage;
 import whiteboard.protocols.Message;
@@ -7,24 +9,100 @@ import whiteboard.protocols.Message;
 public class EventRequest extends Message {
 	static final public String name = "EventRequest";
 	
+	private final String eventName;
+	
+	/**
+	 * The data, null until it is decoded if it was given undecoded.
+	 */
+	private volatile String eventData;
+	
+	/**
+	 * The data before it is decoded, either as UTF-8 or in the document
+	 * the event was received in, null once it is decoded.
+	 */
+	private byte[] eventDataUtf8;
+	private Document eventDataDoc;
+	
+	/**
+	 * Sequence number of a windowed event, 0 if the event is not windowed.
+	 */
+	private long seq=0;
+	
 	public EventRequest(String eventName, String eventData) {
 		super(name, EventProtocol.protocolName, Message.Type.Request);
-		doc.append("eventName", eventName);
-		doc.append("eventData", eventData);
+		this.eventName=eventName;
+		this.eventData=eventData;
+	}
+
+	/**
+	 * Initialiser with the event data given as UTF-8, which is only decoded
+	 * if the data is asked for.
+	 * @param eventName
+	 * @param eventData the bytes of the data, which must not change after
+	 */
+	public EventRequest(String eventName, byte[] eventData) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.eventName=eventName;
+		eventDataUtf8=eventData;
 	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
 		Message.validateStringType("eventName", doc);
 		Message.validateStringType("eventData", doc);
-		this.doc=doc;
+		if(doc.containsKey("seq")) {
+			Message.validateLongType("seq", doc);
+			seq=doc.getLong("seq");
+		}
+		eventName=doc.getString("eventName");
+		// the data is left in the doc until it is asked for
+		eventDataDoc=doc;
+	}
+	
+	@Override
+	protected void appendParameters(Document doc) {
+		doc.append("eventName", eventName);
+		doc.append("eventData", getEventData());
+		if(seq!=0) doc.append("seq", seq);
 	}
 	
 	public String getEventName() {
-		return doc.getString("eventName");
+		return eventName;
 	}
 	
 	public String getEventData() {
-		return doc.getString("eventData");
+		String data = eventData;
+		if(data==null) {
+			synchronized(this) {
+				if(eventData==null) {
+					if(eventDataUtf8!=null) {
+						eventData = new String(eventDataUtf8,StandardCharsets.UTF_8);
+					} else if(eventDataDoc!=null) {
+						eventData = eventDataDoc.getString("eventData");
+					}
+					eventDataUtf8=null;
+					eventDataDoc=null;
+				}
+				data=eventData;
+			}
+		}
+		return data;
+	}
+	
+	/**
+	 * Set the sequence number of a windowed event, which is acknowledged
+	 * cumulatively rather than with a reply of its own.
+	 * @param seq
+	 */
+	public void setSeq(long seq) {
+		this.seq=seq;
+	}
+	
+	/**
+	 * 
+	 * @return the sequence number, or 0 if the event is not windowed
+	 */
+	public long getSeq() {
+		return seq;
 	}
 }
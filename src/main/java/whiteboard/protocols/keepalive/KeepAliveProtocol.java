@@ -1,6 +1,5 @@
 package whiteboard.protocols.keepalive;
 
-import java.time.Instant;
 import java.util.logging.Logger;
 
 import whiteboard.managers.Manager;
@@ -12,19 +11,30 @@ import whiteboard.protocols.IRequestReplyProtocol;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
- * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link whiteboard.utils.Utils#setTimeout(whiteboard.protocols.ICallback, long)}. The server must
- * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
- * it will assume the server is dead
+ * the KeepAlive protocol. Any message received over the endpoint shows that
+ * the other side is alive, not just a KeepAlive request or reply, so
+ * KeepAlive requests are only needed when a connection is idle. If the server
+ * has agreed to it (see
+ * {@link whiteboard.managers.endpoint.Endpoint#idleKeepAliveCapability}) the
+ * client sends a KeepAlive request to the server when it has not received
+ * anything, or not sent anything, for {@link #keepAliveRequestInterval} ms,
+ * otherwise every {@link #keepAliveRequestInterval} ms regardless, since an
+ * older server only takes KeepAlive requests as a sign of life. It checks
+ * with a single
+ * {@link whiteboard.utils.Utils#setTimeout(whiteboard.protocols.ICallback, long)} at a time. The server must
+ * send a KeepAlive response to the client upon receiving the request, which the
+ * client uses to measure the round trip time to the server, which decides
+ * how soon it checks for the reply. If the client does not receive anything
+ * for {@link #keepAliveTimeout} ms after its request was written (see
+ * {@link whiteboard.managers.endpoint.Endpoint#timeoutRemaining(long, int)}),
+ * or for {@link #keepAliveTimeout} ms at all, it will assume the server is dead
  * and signal its manager using
  * {@link whiteboard.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link whiteboard.utils.Utils#setTimeout(whiteboard.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
+ * not receive anything for {@link #keepAliveTimeout} ms it will assume
+ * the client is dead and signal its manager. The server does not set any timeouts
+ * of its own, instead its manager checks all of its clients at once
+ * by calling {@link #checkClientTimeout(long)} periodically. Upon initialisation, the client
+ * should send the KeepAlive request immediately. The protocol stops
  * when a timeout occurs.
  * 
  * @see {@link whiteboard.managers.Manager}
@@ -60,26 +70,21 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	// and they make use of the same flags/variables.
 	
 	/**
-	 * Time that a request was last sent.
+	 * Time that a request was last sent, only used by the client.
 	 */
-	private volatile long timeReplySeen;
+	private volatile long timeRequestSent;
 	
 	/**
-	 * Time that a request was last seen.
+	 * Whether the last request sent has not been replied to yet, only used
+	 * by the client.
 	 */
-	private volatile long timeRequestSeen;
-	
+	private volatile boolean replyPending=false;
 	
 	/**
 	 * Set to true to avoid any further timeouts. 
 	 */
 	private volatile boolean stopped=false;
 	
-	/**
-	 * Whether we should timeout or not.
-	 */
-	private volatile boolean timeout=false; 
-	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
 	 * @param endpoint
@@ -110,79 +115,80 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	
 	/**
-	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
-	 * then timeout. Keep doing this until cancelled.
+	 * Called by the manager that is acting as the server. Nothing to
+	 * do, since the manager calls {@link #checkClientTimeout(long)} itself.
 	 */
 	public void startAsServer() {
-		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
+		
 	}
 	
 	/**
-	 * callback to check for client timeout
+	 * Called periodically by the manager that is acting as the server, to
+	 * check whether anything has been received from the client within
+	 * {@link #keepAliveTimeout} ms.
+	 * @param now the current time in ms
 	 */
-	public void checkClientTimeout() {
+	public void checkClientTimeout(long now) {
 		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
+		if(now-endpoint.getLastReceived() > keepAliveTimeout) {
 			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
 			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
+			manager.endpointTimedOut(endpoint,this);
 		}
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
-	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * send a keep alive immediately and then check the connection
+	 * whenever it may have become idle, until cancelled.
 	 */
 	public void startAsClient() {
-		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
 		// send a request straight away
-		sendAnotherRequest();	
+		sendAnotherRequest();
+		Utils.getInstance().setTimeout(this::checkServerTimeout, keepAliveRequestInterval);
 	}
 	
 	/**
-	 * callback to send new request
+	 * Send a new request.
 	 */
 	public void sendAnotherRequest() {
 		if(stopped)return;
+		timeRequestSent = System.currentTimeMillis();
+		replyPending = true;
 		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
 	}
 	
 	/**
-	 * callback to check for server timeout
+	 * callback to check for server timeout, which sends a request if the
+	 * connection has been idle in either direction for
+	 * {@link #keepAliveRequestInterval} ms, or the last request was sent that
+	 * long ago if the server has not agreed to idle KeepAlives, and then sets the next check for
+	 * when the connection may next have become idle or the server timed out.
 	 */
-	public void checkServerTimeout(long timeSent) {
+	public void checkServerTimeout() {
 		if(stopped)return;
-		if(timeout) {
-			manager.endpointTimedOut(endpoint,this);
+		long now = System.currentTimeMillis();
+		long received = endpoint.getLastReceived();
+		// nothing heard since the request was sent, for longer than it takes to reply
+		long replyDue = replyPending && received<timeRequestSent ?
+				endpoint.timeoutRemaining(timeRequestSent,keepAliveTimeout) : keepAliveTimeout;
+		if(now-received > keepAliveTimeout || replyDue==0) {
+			//we timed out :-(
 			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
+			manager.endpointTimedOut(endpoint,this);
+			return;
 		}
+		// an older server is only kept alive by requests
+		long active = endpoint.hasCapability(Endpoint.idleKeepAliveCapability) ?
+				Math.min(received,endpoint.getLastSent()) : timeRequestSent;
+		if(now-active >= keepAliveRequestInterval
+				&& now-timeRequestSent >= keepAliveRequestInterval) {
+			sendAnotherRequest();
+			replyDue = endpoint.getTimeout(keepAliveTimeout);
+		}
+		long nextCheck = Math.min(Math.max(active,timeRequestSent)+keepAliveRequestInterval,
+				Math.min(received+keepAliveTimeout+1,now+replyDue));
+		Utils.getInstance().setTimeout(this::checkServerTimeout, Math.max(1,nextCheck-now));
 	}
 
 	/**
@@ -196,25 +202,28 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	}
 
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * If we receive a keep alive reply, measure the round trip time of
+	 * the request.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
+		if(replyPending) {
+			replyPending = false;
+			endpoint.sampleRtt(System.currentTimeMillis()-timeRequestSent);
+		}
 	}
 
 	/**
-	 * Received a keep alive request so make a note of when that was.
+	 * Received a keep alive request so reply to it.
 	 * @param msg
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		timeRequestSeen = Instant.now().toEpochMilli();
 		sendReply(new KeepAliveReply());
 	}
 
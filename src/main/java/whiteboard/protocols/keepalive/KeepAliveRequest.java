@@ -30,7 +30,6 @@ public class KeepAliveRequest extends Message {
 	 */
 	public KeepAliveRequest(Document doc) throws InvalidMessage {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
 	}
 	
 }
@@ -93,12 +93,13 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	/**
 	 * Called by the manager that is acting as a client. Timeout if
-	 * a response is not seen.
+	 * a response is not seen. The request offers the endpoint's capabilities
+	 * to the server.
 	 */
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		sendRequest(new SessionStartRequest(endpoint.getSupportedCapabilities()));
 	}
 
 	/**
@@ -139,6 +140,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 * the session has started, otherwise if its a session stop reply then
 	 * tell the manager that the session has stopped. If something weird 
 	 * happens then tell the manager that something weird has happened.
+	 * A session start reply says which of the offered capabilities the
+	 * other endpoint accepted, and the endpoint is upgraded to use them.
 	 * @param msg
 	 */
 	@Override
@@ -150,6 +153,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			endpoint.useCapabilities(((SessionStartReply)msg).getCapabilities());
+			endpoint.upgrade();
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -167,6 +172,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 * tell the manager that the session has started. If the received request
 	 * is a session stop request then reply and tell the manager that
 	 * the session has stopped. If something weird has happened then...
+	 * The reply to a session start request accepts the capabilities that
+	 * both endpoints support, and the endpoint is upgraded to use them.
 	 * @param msg
 	 */
 	@Override
@@ -178,7 +185,9 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			String accepted = endpoint.acceptCapabilities(((SessionStartRequest)msg).getCapabilities());
+			endpoint.sendAndCancelTimeout(new SessionStartReply(accepted),msg);
+			endpoint.upgrade();
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
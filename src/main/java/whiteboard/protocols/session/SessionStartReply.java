@@ -13,12 +13,28 @@ import whiteboard.protocols.Message;
 public class SessionStartReply extends Message {
 	static final public String name = "SessionStartReply";
 	
+	/**
+	 * Comma separated capabilities, empty if none were given.
+	 */
+	private final String capabilities;
+	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
 	 */
 	public SessionStartReply() {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		capabilities="";
+	}
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param capabilities comma separated capabilities, out of those offered
+	 * in the request, that will be used
+	 */
+	public SessionStartReply(String capabilities) {
+		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		this.capabilities=capabilities;
 	}
 	
 	/**
@@ -30,6 +46,24 @@ public class SessionStartReply extends Message {
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		if(doc.containsKey("capabilities")) {
+			Message.validateStringType("capabilities",doc);
+			capabilities=doc.getString("capabilities");
+		} else {
+			capabilities="";
+		}
+	}
+	
+	@Override
+	protected void appendParameters(Document doc) {
+		if(!capabilities.isEmpty()) doc.append("capabilities",capabilities);
+	}
+	
+	/**
+	 * 
+	 * @return the comma separated capabilities, empty if none were given
+	 */
+	public String getCapabilities() {
+		return capabilities;
 	}
 }
@@ -30,6 +30,5 @@ public class SessionStopReply extends Message {
 	 */
 	public SessionStopReply(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
 	}
 }
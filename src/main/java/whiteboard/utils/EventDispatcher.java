@@ -0,0 +1,170 @@
+package whiteboard.utils;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import whiteboard.protocols.ICallback;
+
+/**
+ * Runs callbacks on a fixed number of lanes, each a thread of its own, so
+ * that the thread handing them over does not wait for them. Callbacks are
+ * given a key and those with the same key always run on the same lane, in
+ * the order they were dispatched, while callbacks with different keys may
+ * run at the same time on different lanes.
+ * <br/>
+ * The number of callbacks waiting on each lane is kept, so that a lane that
+ * falls behind can be seen.
+ *
+ * @see {@link whiteboard.utils.Eventable#setDispatcher(EventDispatcher)}
+ */
+public class EventDispatcher {
+	private static Logger log = Logger.getLogger(EventDispatcher.class.getName());
+
+	private final Lane[] lanes;
+
+	/**
+	 * Number of callbacks dispatched and not yet run, over all lanes.
+	 */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/**
+	 * Most callbacks that have been waiting on a lane at once.
+	 */
+	private final AtomicInteger maxLaneDepth = new AtomicInteger();
+
+	/**
+	 * Number of callbacks that have been run.
+	 */
+	private final AtomicLong dispatched = new AtomicLong();
+
+	private volatile boolean running=true;
+
+	/**
+	 * Create and start the lanes.
+	 * @param size number of lanes
+	 */
+	public EventDispatcher(int size) {
+		lanes = new Lane[Math.max(1,size)];
+		for(int i=0;i<lanes.length;i++) {
+			lanes[i] = new Lane(i);
+			lanes[i].start();
+		}
+	}
+
+	/**
+	 * Run a callback on the lane of a key, after the callbacks already
+	 * dispatched with the same key.
+	 * @param key
+	 * @param callback
+	 * @return true if the callback was dispatched, false if the dispatcher
+	 * has been shut down
+	 */
+	public boolean dispatch(Object key, ICallback callback) {
+		if(!running) return false;
+		Lane lane = lanes[Math.floorMod(spread(key.hashCode()),lanes.length)];
+		queued.incrementAndGet();
+		int depth = lane.depth.incrementAndGet();
+		int max;
+		while(depth>(max=maxLaneDepth.get()) && !maxLaneDepth.compareAndSet(max,depth));
+		lane.callbacks.add(callback);
+		return true;
+	}
+
+	/**
+	 * Stop the lanes. Callbacks that have not run yet are never run.
+	 */
+	public void shutDown() {
+		running=false;
+		for(Lane lane : lanes) {
+			lane.interrupt();
+		}
+	}
+
+	/**
+	 *
+	 * @return true if the current thread is a lane of any dispatcher
+	 */
+	public static boolean isLaneThread() {
+		return Thread.currentThread() instanceof Lane;
+	}
+
+	/**
+	 *
+	 * @return the number of lanes
+	 */
+	public int getLanes() {
+		return lanes.length;
+	}
+
+	/**
+	 *
+	 * @return the number of callbacks dispatched and not yet run
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 *
+	 * @param lane
+	 * @return the number of callbacks waiting on a lane
+	 */
+	public int getLaneDepth(int lane) {
+		return lanes[lane].depth.get();
+	}
+
+	/**
+	 *
+	 * @return the most callbacks that have been waiting on a lane at once
+	 */
+	public int getMaxLaneDepth() {
+		return maxLaneDepth.get();
+	}
+
+	/**
+	 *
+	 * @return the number of callbacks that have been run
+	 */
+	public long getDispatched() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Keys often have poor hash codes in their low bits.
+	 */
+	private static int spread(int h) {
+		return h ^ (h>>>16);
+	}
+
+	private class Lane extends Thread {
+		private final LinkedBlockingQueue<ICallback> callbacks = new LinkedBlockingQueue<>();
+		private final AtomicInteger depth = new AtomicInteger();
+
+		Lane(int index) {
+			setName("EventDispatcher-"+index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				ICallback callback;
+				try {
+					callback = callbacks.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				depth.decrementAndGet();
+				queued.decrementAndGet();
+				try {
+					callback.callback();
+				} catch (RuntimeException e) {
+					log.severe("dispatched callback failed: "+e);
+				}
+				dispatched.incrementAndGet();
+			}
+		}
+	}
+}
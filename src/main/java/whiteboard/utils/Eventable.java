@@ -1,32 +1,119 @@
 package whiteboard.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import whiteboard.protocols.event.IEventCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. Callbacks can be removed again, either through
+ * the {@link Listener} returned by {@link #listen(String, IEventCallback)}
+ * or {@link #once(String, IEventCallback)}, by callback with
+ * {@link #off(String, IEventCallback)}, or all of those added for an owner at
+ * once with {@link #offAll(Object)}.
+ * <br/>
+ * The callbacks of each event are kept in an array that is replaced, rather
+ * than changed, when a callback is added or removed. Emitting an event takes
+ * no lock, so callbacks are never called with a lock held, and a callback
+ * that blocks, e.g. writing to a socket, does not hold up other threads that
+ * emit events or add callbacks. A callback added or removed while an event
+ * is being emitted may or may not receive that event.
+ * <br/>
+ * Callbacks are called on the thread that emits the event, unless a
+ * dispatcher is set, see {@link #setDispatcher(EventDispatcher)}, in which
+ * case the callbacks of an event are called on a lane of the dispatcher, in
+ * order with the other events of the same key, and the emitting thread does
+ * not wait for them. Callbacks for all events are always called on the
+ * emitting thread.
  * @author aaron
  *
  */
 public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
 	
+	private static final Listener[] noListeners = new Listener[0];
+	
+	/**
+	 * Event listeners, by event name, not including those for all events.
+	 * Event names that have no listeners are not kept.
+	 */
+	private final Map<String,Listener[]> listeners;
+	
+	/**
+	 * Listeners for all events, i.e. for the special event "*".
+	 */
+	private volatile Listener[] allListeners = noListeners;
+	
+	/**
+	 * Dispatcher that calls the callbacks, null to call them on the
+	 * emitting thread.
+	 */
+	private volatile EventDispatcher dispatcher;
+	
 	/**
-	 * Event callbacks
+	 * Key of an event for the dispatcher, given its name and arguments,
+	 * null for this eventable to be the key of all its events.
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
+	private volatile BiFunction<String,Object[],Object> dispatchKey;
+	
+	/**
+	 * A callback added for an event, which can be removed with {@link #off()}.
+	 */
+	public static final class Listener {
+		private final Eventable eventable;
+		private final String eventName;
+		private final IEventCallback callback;
+		
+		/**
+		 * What the listener was added for, so that it can be removed along
+		 * with the others of its owner, null if nothing.
+		 */
+		private final Object owner;
+		
+		/**
+		 * Whether the listener is removed once it has been called, and
+		 * whether it has been.
+		 */
+		private final boolean once;
+		private final AtomicBoolean called = new AtomicBoolean();
+		
+		private Listener(Eventable eventable, String eventName, IEventCallback callback,
+				Object owner, boolean once) {
+			this.eventable=eventable;
+			this.eventName=eventName;
+			this.callback=callback;
+			this.owner=owner;
+			this.once=once;
+		}
+		
+		/**
+		 * Remove the callback, so that it receives no more events.
+		 * @return true if it was removed, false if it already had been
+		 */
+		public boolean off() {
+			return eventable.remove(eventName,this);
+		}
+		
+		private void call(Object[] args) {
+			if(once) {
+				// only the first of events emitted at the same time gets through
+				if(!called.compareAndSet(false,true)) return;
+				off();
+			}
+			callback.callback(args);
+		}
+	}
 	
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		listeners=new ConcurrentHashMap<>();
 	}
 	
 	/**
@@ -37,15 +124,15 @@ public class Eventable extends Thread {
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				System.arraycopy(args, 0, newargs, 1, args.length);
-				callback.callback(newargs);
-			});
+		Listener[] all=allListeners;
+		if(all.length>0) {
+			// the callbacks for all events share the arguments
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args, 0, newargs, 1, args.length);
+			call(all,newargs);
 			hit=true;
 		}
 		if(localEmit(eventName,args)) hit=true;
@@ -60,15 +147,61 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
+	public boolean localEmit(String eventName, Object... args) {
+		Listener[] named=eventName.equals("*") ? allListeners : listeners.get(eventName);
+		if(named==null || named.length==0) return false;
+		EventDispatcher current=dispatcher;
+		if(current!=null) {
+			BiFunction<String,Object[],Object> keyOf=dispatchKey;
+			Object key=keyOf!=null ? keyOf.apply(eventName,args) : null;
+			if(current.dispatch(key!=null ? key : this, ()->call(named,args))) return true;
 		}
-		return hit;
+		call(named,args);
+		return true;
+	}
+	
+	private static void call(Listener[] named, Object[] args) {
+		for(Listener listener : named) {
+			listener.call(args);
+		}
+	}
+	
+	/**
+	 * Call the callbacks of events on the lanes of a dispatcher rather than
+	 * on the emitting thread, in the order the events are emitted.
+	 * @param dispatcher the dispatcher, or null to call the callbacks on the
+	 * emitting thread again
+	 * @see {@link #setDispatcher(EventDispatcher, BiFunction)}
+	 */
+	public void setDispatcher(EventDispatcher dispatcher) {
+		setDispatcher(dispatcher,null);
+	}
+	
+	/**
+	 * Call the callbacks of events on the lanes of a dispatcher rather than
+	 * on the emitting thread. Events with the same key are called in the
+	 * order they are emitted, events with different keys may be called in
+	 * any order, or at the same time.
+	 * @param dispatcher the dispatcher, or null to call the callbacks on the
+	 * emitting thread again
+	 * @param keyOf gives the key of an event from its name and arguments,
+	 * and may give null for this eventable to be the key; if keyOf is null
+	 * this eventable is the key of all its events
+	 */
+	public void setDispatcher(EventDispatcher dispatcher, BiFunction<String,Object[],Object> keyOf) {
+		this.dispatchKey=keyOf;
+		this.dispatcher=dispatcher;
+	}
+	
+	/**
+	 * 
+	 * @param eventName
+	 * @return true if there are callbacks registered for the event name,
+	 * not counting those for all events
+	 */
+	public boolean hasCallbacks(String eventName) {
+		if(eventName.equals("*")) return allListeners.length>0;
+		return listeners.containsKey(eventName);
 	}
 	
 	/**
@@ -78,11 +211,131 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
-		}
-		callbacks.get(eventName).add(callback);
+	public Eventable on(String eventName, IEventCallback callback) {
+		add(new Listener(this,eventName,callback,null,false));
+		return this;
+	}
+	
+	/**
+	 * Add a new callback for an event on behalf of an owner, that removes
+	 * it along with its other callbacks using {@link #offAll(Object)}.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @param owner
+	 * @return this event handler for chaining
+	 */
+	public Eventable on(String eventName, IEventCallback callback, Object owner) {
+		add(new Listener(this,eventName,callback,owner,false));
 		return this;
 	}
+	
+	/**
+	 * Add a new callback for an event.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return the listener, to remove the callback with
+	 */
+	public Listener listen(String eventName, IEventCallback callback) {
+		return add(new Listener(this,eventName,callback,null,false));
+	}
+	
+	/**
+	 * Add a new callback for the next time an event is emitted only, after
+	 * which it is removed.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return the listener, to remove the callback with before it is called
+	 */
+	public Listener once(String eventName, IEventCallback callback) {
+		return add(new Listener(this,eventName,callback,null,true));
+	}
+	
+	/**
+	 * Remove a callback for an event, as many times as it was added.
+	 * @param eventName event name
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed, false if it was not there
+	 */
+	public boolean off(String eventName, IEventCallback callback) {
+		return removeIf(eventName,(listener)->listener.callback==callback)>0;
+	}
+	
+	/**
+	 * Remove all of the callbacks, for any event, added for an owner.
+	 * @param owner given to {@link #on(String, IEventCallback, Object)}
+	 * @return the number of callbacks removed
+	 */
+	public int offAll(Object owner) {
+		int removed=0;
+		for(String eventName : listeners.keySet()) {
+			removed+=removeIf(eventName,(listener)->listener.owner==owner);
+		}
+		return removed+removeIf("*",(listener)->listener.owner==owner);
+	}
+	
+	/**
+	 * 
+	 * @return the number of callbacks for all events
+	 */
+	public int getCallbackCount() {
+		int count=allListeners.length;
+		for(Listener[] named : listeners.values()) {
+			count+=named.length;
+		}
+		return count;
+	}
+	
+	private Listener add(Listener listener) {
+		if(listener.eventName.equals("*")) {
+			synchronized(listeners) {
+				allListeners=append(allListeners,listener);
+			}
+		} else {
+			listeners.compute(listener.eventName,(name,current)->
+				append(current==null ? noListeners : current,listener));
+		}
+		return listener;
+	}
+	
+	private boolean remove(String eventName, Listener listener) {
+		return removeIf(eventName,(other)->other==listener)>0;
+	}
+	
+	/**
+	 * @return the number of listeners removed
+	 */
+	private int removeIf(String eventName, Predicate<Listener> test) {
+		int[] removed=new int[1];
+		if(eventName.equals("*")) {
+			synchronized(listeners) {
+				Listener[] kept=without(allListeners,test);
+				removed[0]=allListeners.length-kept.length;
+				allListeners=kept;
+			}
+		} else {
+			listeners.computeIfPresent(eventName,(name,current)->{
+				Listener[] kept=without(current,test);
+				removed[0]=current.length-kept.length;
+				// an event with no listeners is not kept
+				return kept.length>0 ? kept : null;
+			});
+		}
+		return removed[0];
+	}
+	
+	private static Listener[] append(Listener[] current, Listener listener) {
+		Listener[] added=Arrays.copyOf(current,current.length+1);
+		added[current.length]=listener;
+		return added;
+	}
+	
+	private static Listener[] without(Listener[] current, Predicate<Listener> test) {
+		int kept=0;
+		Listener[] remaining=new Listener[current.length];
+		for(Listener listener : current) {
+			if(!test.test(listener)) remaining[kept++]=listener;
+		}
+		if(kept==current.length) return current;
+		return kept==0 ? noListeners : Arrays.copyOf(remaining,kept);
+	}
 }
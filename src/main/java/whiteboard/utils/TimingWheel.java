@@ -0,0 +1,314 @@
+package whiteboard.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import whiteboard.protocols.ICallback;
+
+/**
+ * A hashed timing wheel that calls callbacks after a delay, with a single
+ * thread for any number of timeouts. Time is divided into ticks and the
+ * wheel has a bucket for each tick of one rotation; a timeout is put in the
+ * bucket of the tick it expires on, along with the number of rotations still
+ * to go. Setting and cancelling a timeout takes constant time, at the cost of
+ * timeouts expiring up to a tick late.
+ * <br/>
+ * New and cancelled timeouts are handed to the wheel thread through queues,
+ * so the buckets are only ever touched by the wheel thread. Callbacks are run
+ * on the wheel thread as well, so they should be quick.
+ *
+ * @see {@link whiteboard.utils.Utils#setTimeout(ICallback, long)}
+ */
+public class TimingWheel extends Thread {
+	private static Logger log = Logger.getLogger(TimingWheel.class.getName());
+
+	/**
+	 * Length of a tick in ns.
+	 */
+	private final long tickNanos;
+
+	/**
+	 * The buckets, one per tick of a rotation.
+	 */
+	private final Bucket[] wheel;
+
+	/**
+	 * For the index of a bucket, since the number of buckets is a power of 2.
+	 */
+	private final int mask;
+
+	/**
+	 * Time the wheel started, which deadlines are relative to.
+	 */
+	private final long startTime;
+
+	/**
+	 * Timeouts set and not yet in a bucket.
+	 */
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Timeouts cancelled and maybe still in a bucket.
+	 */
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Number of timeouts that have neither expired nor been cancelled.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * The tick being processed, only used by the wheel thread.
+	 */
+	private long tick=0;
+
+	/**
+	 * How late the last tick was processed, in ns.
+	 */
+	private volatile long tickLag=0;
+
+	/**
+	 * Most that a tick has been processed late, in ns.
+	 */
+	private volatile long maxTickLag=0;
+
+	private volatile boolean running=true;
+
+	/**
+	 * Create and start the wheel thread.
+	 * @param tickMillis length of a tick in ms
+	 * @param ticksPerWheel number of buckets, rounded up to a power of 2
+	 */
+	public TimingWheel(long tickMillis, int ticksPerWheel) {
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1,tickMillis));
+		int size = Integer.highestOneBit(Math.max(1,ticksPerWheel-1))<<1;
+		wheel = new Bucket[size];
+		for(int i=0;i<size;i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size-1;
+		startTime = System.nanoTime();
+		setName("TimingWheel");
+		start();
+	}
+
+	/**
+	 * Call a callback after a delay.
+	 * @param callback the method to call
+	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout setTimeout(ICallback callback, long delay) {
+		Timeout timeout = new Timeout(this,callback,
+				System.nanoTime()-startTime+TimeUnit.MILLISECONDS.toNanos(Math.max(0,delay)));
+		if(!running) {
+			timeout.state.set(Timeout.cancelledState);
+			return timeout;
+		}
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the wheel thread. Timeouts that have not expired are never called.
+	 */
+	public void shutDown() {
+		running=false;
+		interrupt();
+	}
+
+	/**
+	 *
+	 * @return the number of timeouts that have neither expired nor been cancelled
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 *
+	 * @return how late the last tick was processed, in ms
+	 */
+	public long getTickLag() {
+		return TimeUnit.NANOSECONDS.toMillis(tickLag);
+	}
+
+	/**
+	 *
+	 * @return the most that a tick has been processed late, in ms
+	 */
+	public long getMaxTickLag() {
+		return TimeUnit.NANOSECONDS.toMillis(maxTickLag);
+	}
+
+	@Override
+	public void run() {
+		while(running) {
+			long deadline = (tick+1)*tickNanos;
+			long now;
+			while((now=System.nanoTime()-startTime)<deadline) {
+				LockSupport.parkNanos(deadline-now);
+				if(!running) return;
+			}
+			tickLag = now-deadline;
+			if(tickLag>maxTickLag) maxTickLag=tickLag;
+			removeCancelled();
+			addNew();
+			wheel[(int)(tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	/**
+	 * Take the cancelled timeouts out of their buckets.
+	 */
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=cancelled.poll())!=null) {
+			if(timeout.bucket!=null) timeout.bucket.remove(timeout);
+		}
+	}
+
+	/**
+	 * Put the new timeouts in their buckets.
+	 */
+	private void addNew() {
+		Timeout timeout;
+		while((timeout=added.poll())!=null) {
+			if(timeout.state.get()!=Timeout.pendingState) continue;
+			long expiresOn = timeout.deadline/tickNanos;
+			timeout.rotations = (expiresOn-tick)/wheel.length;
+			// a timeout that should have expired already expires on this tick
+			wheel[(int)(Math.max(expiresOn,tick) & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Handle on a timeout that has been set.
+	 */
+	public static class Timeout {
+		static final int pendingState = 0;
+		static final int cancelledState = 1;
+		static final int expiredState = 2;
+
+		private final TimingWheel timingWheel;
+		private final ICallback callback;
+
+		/**
+		 * When the timeout expires, in ns relative to the start of the wheel.
+		 */
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(pendingState);
+
+		/*
+		 * Only used by the wheel thread.
+		 */
+		private long rotations;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		Timeout(TimingWheel timingWheel, ICallback callback, long deadline) {
+			this.timingWheel=timingWheel;
+			this.callback=callback;
+			this.deadline=deadline;
+		}
+
+		/**
+		 * Cancel the timeout, so that its callback is never called.
+		 * @return true if the timeout was cancelled, false if it had already
+		 * expired or been cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(pendingState,cancelledState)) return false;
+			timingWheel.pending.decrementAndGet();
+			timingWheel.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 *
+		 * @return true if the timeout has been cancelled
+		 */
+		public boolean isCancelled() {
+			return state.get()==cancelledState;
+		}
+
+		/**
+		 *
+		 * @return true if the timeout has expired, in which case its callback
+		 * has been or is being called
+		 */
+		public boolean isExpired() {
+			return state.get()==expiredState;
+		}
+	}
+
+	/**
+	 * The timeouts that expire on a tick of the wheel, in any rotation, as a
+	 * doubly linked list so that any of them can be removed.
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket=this;
+			timeout.prev=tail;
+			timeout.next=null;
+			if(tail==null) {
+				head=timeout;
+			} else {
+				tail.next=timeout;
+			}
+			tail=timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if(timeout.prev==null) {
+				head=timeout.next;
+			} else {
+				timeout.prev.next=timeout.next;
+			}
+			if(timeout.next==null) {
+				tail=timeout.prev;
+			} else {
+				timeout.next.prev=timeout.prev;
+			}
+			timeout.bucket=null;
+			timeout.next=null;
+			timeout.prev=null;
+		}
+
+		/**
+		 * Call the callbacks of the timeouts that expire in this rotation.
+		 * @param deadline of the tick
+		 */
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while(timeout!=null) {
+				Timeout next = timeout.next;
+				if(timeout.rotations<=0 && timeout.deadline<=deadline) {
+					remove(timeout);
+					if(timeout.state.compareAndSet(Timeout.pendingState,Timeout.expiredState)) {
+						timeout.timingWheel.pending.decrementAndGet();
+						try {
+							timeout.callback.callback();
+						} catch (RuntimeException e) {
+							log.severe("timeout callback failed: "+e);
+						}
+					}
+				} else if(timeout.rotations>0) {
+					timeout.rotations--;
+				}
+				timeout=next;
+			}
+		}
+	}
+}
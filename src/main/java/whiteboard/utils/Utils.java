@@ -1,8 +1,5 @@
 package whiteboard.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import whiteboard.protocols.ICallback;
 
 /**
@@ -36,13 +33,30 @@ public class Utils {
 	public static final int chunkSize = 16*1024;
 	
 	/**
-	 * Use of a single timer object over the entire system helps
+	 * Length of a tick of the timing wheel in ms, timeouts expire up
+	 * to this much late.
+	 */
+	private static final long tickMillis = 10;
+	
+	/**
+	 * Number of ticks in a rotation of the timing wheel.
+	 */
+	private static final int ticksPerWheel = 512;
+	
+	/**
+	 * Use of a single timing wheel over the entire system helps
 	 * to reduce thread usage.
 	 */
-	private Timer timer = new Timer();
+	private final TimingWheel timingWheel;
+	
+	/**
+	 * Shared by all eventables that dispatch events asynchronously, created
+	 * when first asked for.
+	 */
+	private EventDispatcher eventDispatcher;
 	
 	public Utils() {
-		timer=new Timer();
+		timingWheel=new TimingWheel(tickMillis,ticksPerWheel);
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -60,23 +74,66 @@ public class Utils {
 	 * </code>
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled if the callback is no
+	 * longer needed
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public TimingWheel.Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
-			}
-			
-		}, delay);
+		return timingWheel.setTimeout(callback, delay);
+	}
+	
+	/**
+	 * 
+	 * @return the number of timeouts that have neither expired nor been cancelled
+	 */
+	public int getPendingTimeouts() {
+		return timingWheel.getPendingCount();
+	}
+	
+	/**
+	 * 
+	 * @return how late in ms the timeouts due on the last tick of the timing
+	 * wheel were called, which grows if callbacks take too long
+	 */
+	public long getTimeoutLag() {
+		return timingWheel.getTickLag();
+	}
+	
+	/**
+	 * 
+	 * @return the most in ms that timeouts have been called late
+	 */
+	public long getMaxTimeoutLag() {
+		return timingWheel.getMaxTickLag();
+	}
+	
+	/**
+	 * 
+	 * @return true if the current thread is the one that calls the
+	 * callbacks of timeouts, which must never wait
+	 */
+	public boolean isTimerThread() {
+		return Thread.currentThread()==timingWheel;
+	}
+	
+	/**
+	 * 
+	 * @return the dispatcher for eventables that call their callbacks
+	 * asynchronously, with a lane per processor
+	 * @see {@link whiteboard.utils.Eventable#setDispatcher(EventDispatcher)}
+	 */
+	public synchronized EventDispatcher getEventDispatcher() {
+		if(eventDispatcher==null) {
+			eventDispatcher=new EventDispatcher(Runtime.getRuntime().availableProcessors());
+		}
+		return eventDispatcher;
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
-	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+	public synchronized void cleanUp() {
+		timingWheel.shutDown();
+		if(eventDispatcher!=null) eventDispatcher.shutDown();
 	}
 }